@@ -0,0 +1,801 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Translates straight-line blocks of MIPS instructions into JVM bytecode, so
+ * that hot code runs without the fetch, decode and dispatch overhead of
+ * <tt>Processor.Instruction</tt>.
+ *
+ * <p>
+ * A block runs from its first instruction up to and including the delay slot
+ * of the first branch or jump, and never crosses a page. Each block becomes a
+ * hidden class extending <tt>Processor.TranslatedBlock</tt>, whose
+ * <tt>run()</tt> method reads and writes the register file directly and calls
+ * back into the processor for memory accesses, delayed loads, the checks that
+ * can raise a <tt>MipsException</tt>, and the tick after every instruction.
+ * Instructions the translator does not handle (system calls, unaligned loads
+ * and stores, and illegal instructions) end the block before them, leaving
+ * them to the interpreter.
+ *
+ * <p>
+ * Hidden classes require Java 15. On older JVMs <tt>create()</tt> returns
+ * <tt>null</tt> and the processor only interprets.
+ */
+final class BlockTranslator {
+    /**
+     * Return a new block translator, or <tt>null</tt> if this JVM cannot
+     * define hidden classes.
+     *
+     * @return a new translator, or <tt>null</tt>.
+     */
+    static BlockTranslator create() {
+        try {
+            Class<?> clsClassOption = Class.forName(
+                    "java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            Object options = Array.newInstance(clsClassOption, 0);
+
+            MethodHandle defineHiddenClass =
+                    MethodHandles.publicLookup().findVirtual(
+                            MethodHandles.Lookup.class, "defineHiddenClass",
+                            MethodType.methodType(MethodHandles.Lookup.class,
+                                    byte[].class, boolean.class,
+                                    options.getClass())).asFixedArity();
+
+            return new BlockTranslator(defineHiddenClass, options);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private BlockTranslator(MethodHandle defineHiddenClass, Object options) {
+        this.defineHiddenClass = defineHiddenClass;
+        this.options = options;
+    }
+
+    /**
+     * Translate the block starting at virtual address <i>vaddr</i>, which
+     * maps to physical address <i>paddr</i>.
+     *
+     * @param    processor    the processor whose memory holds the code.
+     * @param    vaddr    the virtual address of the first instruction.
+     * @param    paddr    the physical address of the first instruction.
+     * @return the translated block, or <tt>null</tt> if the first instruction
+     * cannot be translated.
+     */
+    Processor.TranslatedBlock translate(Processor processor, int vaddr,
+                                        int paddr) {
+        byte[] memory = processor.getMemory();
+        int pageEnd = (paddr / Processor.pageSize + 1) * Processor.pageSize;
+
+        ArrayList<Processor.DecodedInstruction> instructions =
+                new ArrayList<Processor.DecodedInstruction>();
+        int[] words = new int[maxBlockLength];
+
+        for (int addr = paddr; addr < pageEnd; addr += 4) {
+            int length = instructions.size();
+
+            Processor.DecodedInstruction inst =
+                    processor.predecode(addr, Lib.bytesToInt(memory, addr));
+            if (!canTranslate(inst) || length == maxBlockLength)
+                break;
+
+            if (!isBranch(inst)) {
+                words[length] = inst.value;
+                instructions.add(inst);
+                continue;
+            }
+
+            // a branch is only translated together with its delay slot
+            if (addr + 4 == pageEnd || length + 2 > maxBlockLength)
+                break;
+
+            Processor.DecodedInstruction slot = processor.predecode(addr + 4,
+                    Lib.bytesToInt(memory, addr + 4));
+            if (!canTranslate(slot) || isBranch(slot))
+                break;
+
+            words[length] = inst.value;
+            words[length + 1] = slot.value;
+            instructions.add(inst);
+            instructions.add(slot);
+            break;
+        }
+
+        if (instructions.isEmpty())
+            return null;
+
+        Processor.TranslatedBlock block;
+        try {
+            byte[] classFile = assemble(vaddr, instructions);
+
+            MethodHandles.Lookup lookup = (MethodHandles.Lookup)
+                    defineHiddenClass.invoke(MethodHandles.lookup(), classFile,
+                            true, options);
+            block = (Processor.TranslatedBlock) lookup.findConstructor(
+                    lookup.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            Lib.assertNotReached("could not define translated block: " + e);
+            return null;
+        }
+
+        block.vaddr = vaddr;
+        block.length = instructions.size();
+        block.words = new int[block.length];
+        System.arraycopy(words, 0, block.words, 0, block.length);
+
+        return block;
+    }
+
+    private static boolean isBranch(Processor.DecodedInstruction inst) {
+        return Lib.test(Processor.Mips.BRANCH, inst.flags);
+    }
+
+    private static boolean canTranslate(Processor.DecodedInstruction inst) {
+        switch (inst.operation) {
+            case Processor.Mips.ADD:
+            case Processor.Mips.SUB:
+            case Processor.Mips.MULT:
+            case Processor.Mips.DIV:
+            case Processor.Mips.SLL:
+            case Processor.Mips.SRA:
+            case Processor.Mips.SRL:
+            case Processor.Mips.SLT:
+            case Processor.Mips.AND:
+            case Processor.Mips.OR:
+            case Processor.Mips.NOR:
+            case Processor.Mips.XOR:
+            case Processor.Mips.LUI:
+            case Processor.Mips.MFLO:
+            case Processor.Mips.MFHI:
+            case Processor.Mips.MTLO:
+            case Processor.Mips.MTHI:
+            case Processor.Mips.JUMP:
+            case Processor.Mips.BEQ:
+            case Processor.Mips.BNE:
+            case Processor.Mips.BLEZ:
+            case Processor.Mips.BGTZ:
+            case Processor.Mips.BLTZ:
+            case Processor.Mips.BGEZ:
+            case Processor.Mips.LOAD:
+            case Processor.Mips.STORE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Generate the class file for a block.
+     */
+    private byte[] assemble(int vaddr,
+                            ArrayList<Processor.DecodedInstruction> instructions)
+            throws IOException {
+        ConstantPool pool = new ConstantPool();
+
+        int thisClass = pool.classRef(blockClassName);
+        int superClass = pool.classRef(superClassName);
+
+        Code init = new Code(pool);
+        init.op(ALOAD_0);
+        init.invoke(INVOKESPECIAL, superClassName, "<init>", "()V");
+        init.op(RETURN);
+
+        Code run = new Code(pool);
+        boolean loadPending = true;
+        for (int i = 0; i < instructions.size(); i++) {
+            Processor.DecodedInstruction inst = instructions.get(i);
+            boolean inDelaySlot = (i > 0 && isBranch(instructions.get(i - 1)));
+
+            translateInstruction(run, inst, vaddr + i * 4, inDelaySlot,
+                    loadPending);
+            loadPending = Lib.test(Processor.Mips.DELAYEDLOAD, inst.flags);
+
+            // tick, and stop early if the processor says so
+            run.op(ALOAD_1);
+            run.invoke(INVOKEVIRTUAL, processorClassName, "blockTick", "()Z");
+            if (i + 1 < instructions.size()) {
+                int next = run.newLabel();
+                run.jump(IFNE, next);
+                run.op(RETURN);
+                run.mark(next);
+            } else {
+                run.op(POP);
+                run.op(RETURN);
+            }
+        }
+
+        int initName = pool.utf8("<init>"), initType = pool.utf8("()V");
+        int runName = pool.utf8("run");
+        int runType = pool.utf8("(L" + processorClassName + ";[I)V");
+        int codeName = pool.utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        // version 49 class files are verified without stack map frames
+        out.writeShort(49);
+        pool.write(out);
+        out.writeShort(ACC_FINAL | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0);    // interfaces
+        out.writeShort(0);    // fields
+        out.writeShort(2);    // methods
+        init.writeMethod(out, initName, initType, codeName, 1);
+        run.writeMethod(out, runName, runType, codeName, maxLocals);
+        out.writeShort(0);    // attributes
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Emit the code for one instruction, performing the same state changes as
+     * <tt>Instruction.execute()</tt> and <tt>Instruction.writeBack()</tt>.
+     * Local 3 holds the nextPC chosen by a branch for use by its delay slot,
+     * local 4 the 32-bit result, and locals 5-6 a 64-bit product.
+     *
+     * @param    code    the method being generated.
+     * @param    inst    the instruction to translate.
+     * @param    pc    the virtual address of the instruction.
+     * @param    inDelaySlot    <tt>true</tt> if the instruction is the delay
+     * slot of the preceding branch.
+     * @param    loadPending    <tt>false</tt> if no delayed load can be in
+     * progress when the instruction starts.
+     */
+    private void translateInstruction(Code code,
+                                      Processor.DecodedInstruction inst,
+                                      int pc, boolean inDelaySlot,
+                                      boolean loadPending) {
+        int flags = inst.flags;
+        // only a branch's delay slot (which is never itself a branch) can have
+        // a nextPC other than pc+4, so the link value is always pc+8
+        int link = pc + 8;
+
+        switch (inst.operation) {
+            case Processor.Mips.ADD:
+            case Processor.Mips.SUB:
+                if (Lib.test(Processor.Mips.OVERFLOW, flags))
+                    code.op(ALOAD_1);
+                loadSrc1(code, inst);
+                loadSrc2(code, inst);
+                code.op(inst.operation == Processor.Mips.ADD ? LADD : LSUB);
+                if (Lib.test(Processor.Mips.OVERFLOW, flags))
+                    code.invoke(INVOKEVIRTUAL, processorClassName,
+                            "checkOverflow", "(J)I");
+                else
+                    code.op(L2I);
+                code.local(ISTORE, 4);
+                break;
+            case Processor.Mips.AND:
+            case Processor.Mips.OR:
+            case Processor.Mips.XOR:
+            case Processor.Mips.NOR:
+                loadSrc1(code, inst);
+                loadSrc2(code, inst);
+                if (inst.operation == Processor.Mips.AND) {
+                    code.op(LAND);
+                } else if (inst.operation == Processor.Mips.XOR) {
+                    code.op(LXOR);
+                } else {
+                    code.op(LOR);
+                    if (inst.operation == Processor.Mips.NOR) {
+                        code.pushLong(-1);
+                        code.op(LXOR);
+                    }
+                }
+                code.op(L2I);
+                code.local(ISTORE, 4);
+                break;
+            case Processor.Mips.SLL:
+            case Processor.Mips.SRA:
+            case Processor.Mips.SRL:
+                loadSrc2(code, inst);
+                loadSrc1(code, inst);
+                code.op(L2I);
+                code.pushInt(0x1F);
+                code.op(IAND);
+                if (inst.operation == Processor.Mips.SLL)
+                    code.op(LSHL);
+                else if (inst.operation == Processor.Mips.SRA)
+                    code.op(LSHR);
+                else
+                    code.op(LUSHR);
+                code.op(L2I);
+                code.local(ISTORE, 4);
+                break;
+            case Processor.Mips.SLT: {
+                int less = code.newLabel(), done = code.newLabel();
+                loadSrc1(code, inst);
+                loadSrc2(code, inst);
+                code.op(LCMP);
+                code.jump(IFLT, less);
+                code.pushInt(0);
+                code.jump(GOTO, done);
+                code.mark(less);
+                code.pushInt(1);
+                code.mark(done);
+                code.local(ISTORE, 4);
+                break;
+            }
+            case Processor.Mips.LUI:
+                code.pushInt(inst.imm << 16);
+                code.local(ISTORE, 4);
+                break;
+            case Processor.Mips.MFLO:
+            case Processor.Mips.MFHI:
+                loadRegister(code, inst.operation == Processor.Mips.MFLO ?
+                        Processor.regLo : Processor.regHi);
+                code.local(ISTORE, 4);
+                break;
+            case Processor.Mips.MTLO:
+            case Processor.Mips.MTHI:
+                code.op(ALOAD_2);
+                code.pushInt(inst.operation == Processor.Mips.MTLO ?
+                        Processor.regLo : Processor.regHi);
+                loadRegister(code, inst.rs);
+                code.op(IASTORE);
+                break;
+            case Processor.Mips.MULT:
+                loadSrc1(code, inst);
+                loadSrc2(code, inst);
+                code.op(LMUL);
+                code.local(LSTORE, 5);
+                code.op(ALOAD_2);
+                code.pushInt(Processor.regLo);
+                code.local(LLOAD, 5);
+                code.op(L2I);
+                code.op(IASTORE);
+                code.op(ALOAD_2);
+                code.pushInt(Processor.regHi);
+                code.local(LLOAD, 5);
+                code.pushInt(32);
+                code.op(LSHR);
+                code.op(L2I);
+                code.op(IASTORE);
+                break;
+            case Processor.Mips.DIV:
+                code.op(ALOAD_1);
+                loadSrc1(code, inst);
+                loadSrc2(code, inst);
+                code.invoke(INVOKEVIRTUAL, processorClassName, "divide",
+                        "(JJ)V");
+                break;
+            case Processor.Mips.LOAD:
+                code.op(ALOAD_1);
+                loadAddress(code, inst);
+                code.pushInt(inst.size);
+                code.invoke(INVOKEVIRTUAL, processorClassName, "readMem",
+                        "(II)I");
+                if (!Lib.test(Processor.Mips.UNSIGNED, flags)) {
+                    if (inst.size == 1)
+                        code.op(I2B);
+                    else if (inst.size == 2)
+                        code.op(I2S);
+                }
+                code.local(ISTORE, 4);
+                break;
+            case Processor.Mips.STORE:
+                code.op(ALOAD_1);
+                loadAddress(code, inst);
+                code.pushInt(inst.size);
+                loadRegister(code, inst.rt);
+                code.invoke(INVOKEVIRTUAL, processorClassName, "writeMem",
+                        "(III)V");
+                break;
+            case Processor.Mips.JUMP:
+                if (inst.format == Processor.Mips.RFMT)
+                    loadRegister(code, inst.rs);
+                else
+                    code.pushInt(((pc + 4) & 0xF0000000) | inst.jumpTarget);
+                code.local(ISTORE, 3);
+                break;
+            case Processor.Mips.BEQ:
+            case Processor.Mips.BNE:
+            case Processor.Mips.BLEZ:
+            case Processor.Mips.BGTZ:
+            case Processor.Mips.BLTZ:
+            case Processor.Mips.BGEZ: {
+                int taken = code.newLabel(), done = code.newLabel();
+                loadRegister(code, inst.rs);
+                switch (inst.operation) {
+                    case Processor.Mips.BEQ:
+                        loadRegister(code, inst.rt);
+                        code.jump(IF_ICMPEQ, taken);
+                        break;
+                    case Processor.Mips.BNE:
+                        loadRegister(code, inst.rt);
+                        code.jump(IF_ICMPNE, taken);
+                        break;
+                    case Processor.Mips.BLEZ:
+                        code.jump(IFLE, taken);
+                        break;
+                    case Processor.Mips.BGTZ:
+                        code.jump(IFGT, taken);
+                        break;
+                    case Processor.Mips.BLTZ:
+                        code.jump(IFLT, taken);
+                        break;
+                    default:
+                        code.jump(IFGE, taken);
+                        break;
+                }
+                code.pushInt(pc + 8);
+                code.jump(GOTO, done);
+                code.mark(taken);
+                code.pushInt(pc + 4 + inst.branchOffset);
+                code.mark(done);
+                code.local(ISTORE, 3);
+                break;
+            }
+            default:
+                Lib.assertNotReached();
+        }
+
+        // complete the previous delayed load and start this one
+        if (Lib.test(Processor.Mips.DELAYEDLOAD, flags)) {
+            code.op(ALOAD_1);
+            code.pushInt(inst.dstReg);
+            code.local(ILOAD, 4);
+            code.pushInt(-1);
+            code.invoke(INVOKEVIRTUAL, processorClassName, "delayedLoad",
+                    "(III)V");
+        } else if (loadPending) {
+            code.op(ALOAD_1);
+            code.invoke(INVOKEVIRTUAL, processorClassName, "finishLoad",
+                    "()V");
+        }
+
+        if (Lib.test(Processor.Mips.DST, flags) && inst.dstReg != 0) {
+            code.op(ALOAD_2);
+            code.pushInt(inst.dstReg);
+            if (Lib.test(Processor.Mips.LINK, flags))
+                code.pushInt(link);
+            else
+                code.local(ILOAD, 4);
+            code.op(IASTORE);
+        }
+
+        // advance the PC
+        code.op(ALOAD_2);
+        code.pushInt(Processor.regPC);
+        if (inDelaySlot)
+            code.local(ILOAD, 3);
+        else
+            code.pushInt(pc + 4);
+        code.op(IASTORE);
+
+        code.op(ALOAD_2);
+        code.pushInt(Processor.regNextPC);
+        if (inDelaySlot) {
+            code.local(ILOAD, 3);
+            code.pushInt(4);
+            code.op(IADD);
+        } else if (isBranch(inst)) {
+            code.local(ILOAD, 3);
+        } else {
+            code.pushInt(pc + 8);
+        }
+        code.op(IASTORE);
+    }
+
+    private void loadRegister(Code code, int number) {
+        code.op(ALOAD_2);
+        code.pushInt(number);
+        code.op(IALOAD);
+    }
+
+    /**
+     * Push <tt>src1</tt>, widened to a long as in <tt>Instruction</tt>.
+     */
+    private void loadSrc1(Code code, Processor.DecodedInstruction inst) {
+        if (Lib.test(Processor.Mips.SRC1SH, inst.flags)) {
+            code.pushLong(inst.sh);
+            return;
+        }
+
+        loadRegister(code, inst.rs);
+        code.op(I2L);
+        if (Lib.test(Processor.Mips.UNSIGNED, inst.flags)) {
+            code.pushLong(0xFFFFFFFFL);
+            code.op(LAND);
+        }
+    }
+
+    /**
+     * Push <tt>src2</tt>, widened to a long as in <tt>Instruction</tt>.
+     */
+    private void loadSrc2(Code code, Processor.DecodedInstruction inst) {
+        boolean unsigned = Lib.test(Processor.Mips.UNSIGNED, inst.flags);
+
+        if (Lib.test(Processor.Mips.SRC2IMM, inst.flags)) {
+            code.pushLong(unsigned ? (inst.imm & 0xFFFFFFFFL) : inst.imm);
+            return;
+        }
+
+        loadRegister(code, inst.rt);
+        code.op(I2L);
+        if (unsigned) {
+            code.pushLong(0xFFFFFFFFL);
+            code.op(LAND);
+        }
+    }
+
+    private void loadAddress(Code code, Processor.DecodedInstruction inst) {
+        loadRegister(code, inst.rs);
+        if (inst.imm != 0) {
+            code.pushInt(inst.imm);
+            code.op(IADD);
+        }
+    }
+
+    /**
+     * The constant pool of a class file under construction.
+     */
+    private static class ConstantPool {
+        int utf8(String value) {
+            return entry("U" + value, TAG_UTF8, value, 0, 0);
+        }
+
+        int classRef(String name) {
+            return entry("C" + name, TAG_CLASS, null, utf8(name), 0);
+        }
+
+        int integer(int value) {
+            return entry("I" + value, TAG_INTEGER, null, value, 0);
+        }
+
+        int longValue(long value) {
+            int index = entry("J" + value, TAG_LONG, null, (int) (value >>> 32),
+                    (int) value);
+            return index;
+        }
+
+        int methodRef(String className, String name, String type) {
+            int nameAndType = entry("N" + name + ":" + type, TAG_NAMEANDTYPE,
+                    null, utf8(name), utf8(type));
+            return entry("M" + className + "." + name + ":" + type,
+                    TAG_METHODREF, null, classRef(className), nameAndType);
+        }
+
+        private int entry(String key, int tag, String text, int a, int b) {
+            Integer index = indices.get(key);
+            if (index != null)
+                return index.intValue();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeByte(tag);
+                switch (tag) {
+                    case TAG_UTF8:
+                        out.writeUTF(text);
+                        break;
+                    case TAG_CLASS:
+                        out.writeShort(a);
+                        break;
+                    case TAG_INTEGER:
+                        out.writeInt(a);
+                        break;
+                    case TAG_LONG:
+                        out.writeInt(a);
+                        out.writeInt(b);
+                        break;
+                    default:
+                        out.writeShort(a);
+                        out.writeShort(b);
+                        break;
+                }
+                out.flush();
+            } catch (IOException e) {
+                Lib.assertNotReached();
+            }
+
+            int newIndex = count;
+            // longs take up two slots
+            count += (tag == TAG_LONG) ? 2 : 1;
+            entries.add(bytes.toByteArray());
+            indices.put(key, Integer.valueOf(newIndex));
+
+            return newIndex;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(count);
+            for (int i = 0; i < entries.size(); i++)
+                out.write(entries.get(i));
+        }
+
+        private int count = 1;
+        private ArrayList<byte[]> entries = new ArrayList<byte[]>();
+        private HashMap<String, Integer> indices =
+                new HashMap<String, Integer>();
+
+        private static final int
+                TAG_UTF8 = 1,
+                TAG_INTEGER = 3,
+                TAG_LONG = 5,
+                TAG_CLASS = 7,
+                TAG_METHODREF = 10,
+                TAG_NAMEANDTYPE = 12;
+    }
+
+    /**
+     * The bytecode of a method under construction. Jumps are emitted with
+     * 16-bit offsets and patched once every label is placed.
+     */
+    private static class Code {
+        Code(ConstantPool pool) {
+            this.pool = pool;
+        }
+
+        void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        void local(int opcode, int index) {
+            op(opcode);
+            bytes.write(index);
+        }
+
+        void invoke(int opcode, String className, String name, String type) {
+            op(opcode);
+            writeShort(pool.methodRef(className, name, type));
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                bytes.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH);
+                writeShort(value);
+            } else {
+                op(LDC_W);
+                writeShort(pool.integer(value));
+            }
+        }
+
+        void pushLong(long value) {
+            if (value == 0 || value == 1) {
+                op(LCONST_0 + (int) value);
+            } else {
+                op(LDC2_W);
+                writeShort(pool.longValue(value));
+            }
+        }
+
+        int newLabel() {
+            labels.add(Integer.valueOf(-1));
+            return labels.size() - 1;
+        }
+
+        void mark(int label) {
+            labels.set(label, Integer.valueOf(bytes.size()));
+        }
+
+        void jump(int opcode, int label) {
+            int at = bytes.size();
+            op(opcode);
+            fixups.add(new int[]{at, label});
+            writeShort(0);
+        }
+
+        void writeMethod(DataOutputStream out, int name, int type,
+                         int codeName, int maxLocals) throws IOException {
+            byte[] code = bytes.toByteArray();
+            for (int i = 0; i < fixups.size(); i++) {
+                int at = fixups.get(i)[0];
+                int offset = labels.get(fixups.get(i)[1]).intValue() - at;
+                code[at + 1] = (byte) (offset >> 8);
+                code[at + 2] = (byte) offset;
+            }
+
+            out.writeShort(0);    // package access, like the abstract method
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0);    // exception table
+            out.writeShort(0);    // attributes
+        }
+
+        private void writeShort(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        private ConstantPool pool;
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private ArrayList<Integer> labels = new ArrayList<Integer>();
+        private ArrayList<int[]> fixups = new ArrayList<int[]>();
+    }
+
+    private MethodHandle defineHiddenClass;
+    private Object options;
+
+    /**
+     * The most instructions translated into one block.
+     */
+    private static final int maxBlockLength = 64;
+
+    private static final int maxStack = 16;
+    private static final int maxLocals = 7;
+
+    private static final String processorClassName =
+            "nachos/machine/Processor";
+    private static final String superClassName =
+            "nachos/machine/Processor$TranslatedBlock";
+    private static final String blockClassName =
+            "nachos/machine/TranslatedMipsBlock";
+
+    private static final int
+            ACC_FINAL = 0x0010,
+            ACC_SUPER = 0x0020;
+
+    private static final int
+            ICONST_0 = 0x03,
+            LCONST_0 = 0x09,
+            BIPUSH = 0x10,
+            SIPUSH = 0x11,
+            LDC_W = 0x13,
+            LDC2_W = 0x14,
+            ILOAD = 0x15,
+            LLOAD = 0x16,
+            IALOAD = 0x2e,
+            ALOAD_0 = 0x2a,
+            ALOAD_1 = 0x2b,
+            ALOAD_2 = 0x2c,
+            ISTORE = 0x36,
+            LSTORE = 0x37,
+            IASTORE = 0x4f,
+            POP = 0x57,
+            IADD = 0x60,
+            LADD = 0x61,
+            LSUB = 0x65,
+            LMUL = 0x69,
+            LSHL = 0x79,
+            LSHR = 0x7b,
+            LUSHR = 0x7d,
+            IAND = 0x7e,
+            LAND = 0x7f,
+            LOR = 0x81,
+            LXOR = 0x83,
+            I2L = 0x85,
+            L2I = 0x88,
+            I2B = 0x91,
+            I2S = 0x93,
+            LCMP = 0x94,
+            IFNE = 0x9a,
+            IFLT = 0x9b,
+            IFGE = 0x9c,
+            IFGT = 0x9d,
+            IFLE = 0x9e,
+            IF_ICMPEQ = 0x9f,
+            IF_ICMPNE = 0xa0,
+            GOTO = 0xa7,
+            RETURN = 0xb1,
+            INVOKEVIRTUAL = 0xb6,
+            INVOKESPECIAL = 0xb7;
+}
@@ -4,10 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
-
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
  * hardware provides a method (<tt>setStatus()</tt>) to enable or disable
@@ -53,7 +49,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new InterruptQueue();
     }
 
     /**
@@ -120,17 +116,49 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time, in kernel ticks, to the last tick before the
+     * next pending interrupt is due. This has the same effect as a kernel that
+     * keeps enabling and disabling interrupts with nothing else to do, except
+     * that those ticks pass at once. The next kernel tick will then invoke the
+     * interrupt's handler. Interrupts must be disabled.
+     */
+    public void fastForward() {
+	Lib.assertTrue(disabled());
+
+	// the debugger prints every tick
+	if (pending.isEmpty() || Lib.test(dbgInt))
+	    return;
+
+	Stats stats = privilege.stats;
+
+	long ticks = (pending.firstTime() - stats.totalTicks - 1) /
+	    Stats.KernelTick;
+	if (ticks <= 0)
+	    return;
+
+	stats.kernelTicks += ticks * Stats.KernelTick;
+	stats.totalTicks += ticks * Stats.KernelTick;
+    }
+
+    /**
+     * Test the pending interrupt queue, and time it with thousands of
+     * interrupts outstanding.
+     */
+    public static void selfTest() {
+	InterruptQueue.selfTest();
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	pending.add(time, type, handler);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +181,28 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private int userTickBudget() {
+	// a tick while disabled re-enables interrupts, and the debugger
+	// prints every tick, so neither can be batched
+	if (!enabled || Lib.test(dbgInt))
+	    return 0;
+
+	if (pending.isEmpty())
+	    return Integer.MAX_VALUE;
+
+	long budget = (pending.firstTime() -
+		       privilege.stats.totalTicks - 1) / Stats.UserTick;
+
+	return (int) Math.max(0, Math.min(budget, Integer.MAX_VALUE));
+    }
+
+    private void advanceUserTicks(int count) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += (long) count * Stats.UserTick;
+	stats.totalTicks += (long) count * Stats.UserTick;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -164,24 +214,21 @@ public final class Interrupt {
 	if (pending.isEmpty())
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.firstTime() > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (!pending.isEmpty() && pending.firstTime() <= time) {
+	    String type = pending.firstType();
+	    Runnable handler = pending.removeFirst();
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,52 +239,15 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
-	}
+	pending.print();
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
-
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
-	}
-
-	long time;
-	String type;
-	Runnable handler;
-
-	private long id;
-    }
-    
-    private long numPendingInterruptsCreated = 0;
-
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private InterruptQueue pending;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +259,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public int userTickBudget() {
+	    return Interrupt.this.userTickBudget();
+	}
+
+	public void advanceUserTicks(int count) {
+	    Interrupt.this.advanceUserTicks(count);
+	}
     }
 }
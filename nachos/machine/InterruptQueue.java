@@ -0,0 +1,303 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * The pending interrupts of an <tt>Interrupt</tt> controller, ordered by the
+ * time they are due and then by the order they were scheduled.
+ *
+ * <p>
+ * The queue is a binary heap of slot numbers. Each interrupt's time, sequence
+ * number, type and handler are kept in parallel arrays indexed by its slot,
+ * and slots are recycled through a free list. Once the arrays have grown to
+ * the largest number of outstanding interrupts, scheduling and firing an
+ * interrupt allocate nothing. Both take O(log n) time.
+ */
+final class InterruptQueue {
+    /**
+     * Allocate a new, empty interrupt queue.
+     */
+    InterruptQueue() {
+	this(16);
+    }
+
+    private InterruptQueue(int capacity) {
+	heap = new int[capacity];
+	times = new long[capacity];
+	sequence = new long[capacity];
+	types = new String[capacity];
+	handlers = new Runnable[capacity];
+	free = new int[capacity];
+
+	for (int i=0; i<capacity; i++)
+	    free[i] = capacity-1-i;
+	numFree = capacity;
+    }
+
+    /**
+     * Tests whether the queue is empty.
+     *
+     * @return	<tt>true</tt> if no interrupts are pending.
+     */
+    boolean isEmpty() {
+	return size == 0;
+    }
+
+    /**
+     * Return the number of pending interrupts.
+     *
+     * @return	the number of pending interrupts.
+     */
+    int size() {
+	return size;
+    }
+
+    /**
+     * Add an interrupt to the queue.
+     *
+     * @param	time	the time at which the interrupt is due.
+     * @param	type	a name for the type of interrupt.
+     * @param	handler	the interrupt handler to call.
+     */
+    void add(long time, String type, Runnable handler) {
+	if (numFree == 0)
+	    grow();
+
+	int slot = free[--numFree];
+	times[slot] = time;
+	sequence[slot] = nextSequence++;
+	types[slot] = type;
+	handlers[slot] = handler;
+
+	siftUp(size++, slot);
+    }
+
+    /**
+     * Return the time at which the first interrupt is due. The queue must not
+     * be empty.
+     *
+     * @return	the time of the first interrupt.
+     */
+    long firstTime() {
+	Lib.assertTrue(size > 0);
+	return times[heap[0]];
+    }
+
+    /**
+     * Return the type of the first interrupt. The queue must not be empty.
+     *
+     * @return	the type of the first interrupt.
+     */
+    String firstType() {
+	Lib.assertTrue(size > 0);
+	return types[heap[0]];
+    }
+
+    /**
+     * Remove the first interrupt from the queue and return its handler. The
+     * queue must not be empty.
+     *
+     * @return	the handler of the removed interrupt.
+     */
+    Runnable removeFirst() {
+	Lib.assertTrue(size > 0);
+
+	int slot = heap[0];
+	Runnable handler = handlers[slot];
+
+	types[slot] = null;
+	handlers[slot] = null;
+	free[numFree++] = slot;
+
+	int last = heap[--size];
+	if (size > 0)
+	    siftDown(0, last);
+
+	return handler;
+    }
+
+    /**
+     * Print the pending interrupts in the order they will occur.
+     */
+    void print() {
+	Integer[] order = new Integer[size];
+	for (int i=0; i<size; i++)
+	    order[i] = heap[i];
+
+	Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer slot1, Integer slot2) {
+		    return before(slot1, slot2) ? -1 : 1;
+		}
+	    });
+
+	for (int i=0; i<size; i++) {
+	    System.out.println("  " + types[order[i]] +
+			       ", scheduled at " + times[order[i]]);
+	}
+    }
+
+    private boolean before(int slot1, int slot2) {
+	if (times[slot1] != times[slot2])
+	    return times[slot1] < times[slot2];
+	else
+	    return sequence[slot1] < sequence[slot2];
+    }
+
+    private void siftUp(int pos, int slot) {
+	while (pos > 0) {
+	    int parent = (pos-1) / 2;
+	    if (!before(slot, heap[parent]))
+		break;
+
+	    heap[pos] = heap[parent];
+	    pos = parent;
+	}
+
+	heap[pos] = slot;
+    }
+
+    private void siftDown(int pos, int slot) {
+	while (true) {
+	    int child = 2*pos + 1;
+	    if (child >= size)
+		break;
+
+	    if (child+1 < size && before(heap[child+1], heap[child]))
+		child++;
+	    if (!before(heap[child], slot))
+		break;
+
+	    heap[pos] = heap[child];
+	    pos = child;
+	}
+
+	heap[pos] = slot;
+    }
+
+    private void grow() {
+	int capacity = heap.length*2;
+
+	heap = Arrays.copyOf(heap, capacity);
+	times = Arrays.copyOf(times, capacity);
+	sequence = Arrays.copyOf(sequence, capacity);
+	types = Arrays.copyOf(types, capacity);
+	handlers = Arrays.copyOf(handlers, capacity);
+	free = Arrays.copyOf(free, capacity);
+
+	// every slot was in use, so the new slots are the only free ones
+	for (int i=capacity-1; i>=capacity/2; i--)
+	    free[numFree++] = i;
+    }
+
+    /**
+     * Check that interrupts leave the queue in the same order a sorted set
+     * would give them, and time scheduling and firing with thousands of
+     * interrupts outstanding against the <tt>TreeSet</tt> the interrupt
+     * controller used to keep.
+     */
+    static void selfTest() {
+	Random random = new Random(0);
+	InterruptQueue queue = new InterruptQueue();
+	TreeSet<long[]> reference = new TreeSet<long[]>(byTimeAndId);
+
+	// equal times must come out in the order they were scheduled
+	long id = 0;
+	for (int round=0; round<20000; round++) {
+	    if (reference.isEmpty() || random.nextInt(3) != 0) {
+		long time = random.nextInt(500);
+		queue.add(time, "test", null);
+		reference.add(new long[] {time, id++});
+	    }
+	    else {
+		long[] expected = reference.pollFirst();
+		Lib.assertTrue(queue.firstTime() == expected[0]);
+		Lib.assertTrue(queue.sequence[queue.heap[0]] == expected[1]);
+		queue.removeFirst();
+	    }
+	    Lib.assertTrue(queue.size() == reference.size());
+	}
+
+	// warm up the JIT so neither structure pays for compilation
+	benchmarkHeap(1000);
+	benchmarkTreeSet(1000);
+
+	for (int outstanding : new int[] {1000, 10000}) {
+	    System.out.println("InterruptQueue: " + outstanding +
+			       " outstanding interrupts, heap " +
+			       benchmarkHeap(outstanding) + " ns/event, " +
+			       "TreeSet " + benchmarkTreeSet(outstanding) +
+			       " ns/event");
+	}
+    }
+
+    private static final int benchmarkEvents = 1000000;
+
+    /** Orders {time, id} pairs the way <tt>PendingInterrupt</tt> did. */
+    private static final Comparator<long[]> byTimeAndId =
+	new Comparator<long[]>() {
+	    public int compare(long[] a, long[] b) {
+		if (a[0] != b[0])
+		    return Long.compare(a[0], b[0]);
+		else
+		    return Long.compare(a[1], b[1]);
+	    }
+	};
+
+    /**
+     * Keep <i>outstanding</i> interrupts pending while repeatedly firing the
+     * first and rescheduling it a random time later, like a device polling
+     * itself, and return the average cost of each fire and reschedule.
+     */
+    private static long benchmarkHeap(int outstanding) {
+	Random random = new Random(0);
+	InterruptQueue queue = new InterruptQueue();
+	Runnable handler = new Runnable() { public void run() {} };
+
+	for (int i=0; i<outstanding; i++)
+	    queue.add(random.nextInt(outstanding), "bench", handler);
+
+	long start = System.nanoTime();
+	for (int i=0; i<benchmarkEvents; i++) {
+	    long time = queue.firstTime();
+	    queue.removeFirst().run();
+	    queue.add(time + 1 + random.nextInt(outstanding), "bench",
+		      handler);
+	}
+	return (System.nanoTime() - start) / benchmarkEvents;
+    }
+
+    private static long benchmarkTreeSet(int outstanding) {
+	Random random = new Random(0);
+	TreeSet<long[]> queue = new TreeSet<long[]>(byTimeAndId);
+
+	long id = 0;
+	for (int i=0; i<outstanding; i++)
+	    queue.add(new long[] {random.nextInt(outstanding), id++});
+
+	long start = System.nanoTime();
+	for (int i=0; i<benchmarkEvents; i++) {
+	    long time = queue.pollFirst()[0];
+	    queue.add(new long[] {time + 1 + random.nextInt(outstanding),
+				  id++});
+	}
+	return (System.nanoTime() - start) / benchmarkEvents;
+    }
+
+    private int[] heap;
+    private int size = 0;
+
+    private long[] times;
+    private long[] sequence;
+    private String[] types;
+    private Runnable[] handlers;
+
+    private int[] free;
+    private int numFree;
+
+    private long nextSequence = 0;
+}
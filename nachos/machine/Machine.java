@@ -101,6 +101,21 @@ public final class Machine {
 	terminate();
     }
 
+    /**
+     * Record how many frames of physical memory the kernel's frame allocator
+     * has free and how they are fragmented. The last values recorded are
+     * printed with the other statistics when Nachos halts.
+     *
+     * @param	numFrames	the number of frames the allocator manages.
+     * @param	numFree		the number of free frames.
+     * @param	numFreeRuns	the number of runs of contiguous free frames.
+     * @param	largestFreeRun	the length of the longest such run.
+     */
+    public static void reportFrames(int numFrames, int numFree,
+				    int numFreeRuns, int largestFreeRun) {
+	stats.recordFrames(numFrames, numFree, numFreeRuns, largestFreeRun);
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
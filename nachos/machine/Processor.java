@@ -46,6 +46,27 @@ public final class Processor {
             registers[i] = 0;
 
         mainMemory = new byte[pageSize * numPhysPages];
+        decodeCache = new DecodedInstruction[numPhysPages * pageSize / 4];
+
+        exceptions = new MipsException[exceptionNames.length];
+        for (int i = 0; i < exceptionNames.length; i++)
+            exceptions[i] = new MipsException(i);
+
+        // the disassembler traces every fetch, so only translate without it
+        if (Config.getBoolean("Processor.translateBlocks", false) &&
+                !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+                !Lib.test(dbgFullDisassemble)) {
+            translator = BlockTranslator.create();
+
+            if (translator != null) {
+                verifyTranslation =
+                        Config.getBoolean("Processor.verifyTranslation", false);
+
+                blocks = new TranslatedBlock[numPhysPages * pageSize / 4];
+                blockHeat = new int[numPhysPages * pageSize / 4];
+                translatedPages = new boolean[numPhysPages];
+            }
+        }
 
         if (usingTLB) {
             translations = new TranslationEntry[tlbSize];
@@ -91,16 +112,57 @@ public final class Processor {
         Machine.autoGrader().runProcessor(privilege);
 
         Instruction inst = new Instruction();
+        boolean atBlockStart = true;
 
         while (true) {
             try {
+                // a translated block ticks after each of its instructions
+                if (atBlockStart && translator != null && runBlock())
+                    continue;
+
                 inst.run();
+                atBlockStart = inst.endsBlock;
             } catch (MipsException e) {
+                atBlockStart = true;
+                flushTicks();
                 e.handle();
             }
 
-            privilege.interrupt.tick(false);
+            tick();
+        }
+    }
+
+    /**
+     * Advance the simulated time by one user instruction. While the
+     * instruction budget lasts, no interrupt can become due, so the tick is
+     * only counted. Otherwise the counted ticks are accounted for and a full
+     * tick checks for pending interrupts.
+     */
+    private void tick() {
+        if (tickBudget > 0) {
+            tickBudget--;
+            batchedTicks++;
+            return;
         }
+
+        flushTicks();
+        privilege.interrupt.tick(false);
+
+        tickBudget = privilege.interrupt.userTickBudget();
+    }
+
+    /**
+     * Account for any counted ticks and give up the rest of the budget. Must be
+     * called before the kernel can run, since it may read the simulated time
+     * or schedule a new interrupt.
+     */
+    private void flushTicks() {
+        if (batchedTicks > 0) {
+            privilege.interrupt.advanceUserTicks(batchedTicks);
+            batchedTicks = 0;
+        }
+
+        tickBudget = 0;
     }
 
     /**
@@ -273,7 +335,7 @@ public final class Processor {
         return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
     }
 
-    private void finishLoad() {
+    void finishLoad() {
         delayedLoad(0, 0, 0);
     }
 
@@ -299,7 +361,7 @@ public final class Processor {
         // check alignment
         if ((vaddr & (size - 1)) != 0) {
             Lib.debug(dbgProcessor, "\t\talignment error");
-            throw new MipsException(exceptionAddressError, vaddr);
+            throw raise(exceptionAddressError, vaddr);
         }
 
         // calculate virtual page number and offset from the virtual address
@@ -315,7 +377,7 @@ public final class Processor {
                     !translations[vpn].valid) {
                 privilege.stats.numPageFaults++;
                 Lib.debug(dbgProcessor, "\t\tpage fault");
-                throw new MipsException(exceptionPageFault, vaddr);
+                throw raise(exceptionPageFault, vaddr);
             }
 
             entry = translations[vpn];
@@ -331,21 +393,21 @@ public final class Processor {
             if (entry == null) {
                 privilege.stats.numTLBMisses++;
                 Lib.debug(dbgProcessor, "\t\tTLB miss");
-                throw new MipsException(exceptionTLBMiss, vaddr);
+                throw raise(exceptionTLBMiss, vaddr);
             }
         }
 
         // check if trying to write a read-only page
         if (entry.readOnly && writing) {
             Lib.debug(dbgProcessor, "\t\tread-only exception");
-            throw new MipsException(exceptionReadOnly, vaddr);
+            throw raise(exceptionReadOnly, vaddr);
         }
 
         // check if physical page number is out of range
         int ppn = entry.ppn;
         if (ppn < 0 || ppn >= numPhysPages) {
             Lib.debug(dbgProcessor, "\t\tbad ppn");
-            throw new MipsException(exceptionBusError, vaddr);
+            throw raise(exceptionBusError, vaddr);
         }
 
         // set used and dirty bits as appropriate
@@ -360,6 +422,34 @@ public final class Processor {
         return paddr;
     }
 
+    /**
+     * Return the predecoded form of the instruction word <i>value</i> found at
+     * physical address <i>paddr</i>. The decoded form is cached per physical
+     * page and reused for as long as the word stored there is unchanged, so a
+     * page that is rewritten (by a store or by the kernel through
+     * <tt>getMemory()</tt>) is decoded again the next time it is executed.
+     * Since the cache is indexed by physical address, remapping a virtual page
+     * never leaves a stale entry behind.
+     *
+     * @param    paddr    the physical address the instruction was fetched from.
+     * @param    value    the instruction word read from that address.
+     * @return the decoded instruction.
+     */
+    DecodedInstruction predecode(int paddr, int value) {
+        int index = paddr / 4;
+
+        DecodedInstruction decoded = decodeCache[index];
+        if (decoded == null) {
+            decoded = new DecodedInstruction();
+            decoded.decode(value);
+            decodeCache[index] = decoded;
+        } else if (decoded.value != value) {
+            decoded.decode(value);
+        }
+
+        return decoded;
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -369,7 +459,7 @@ public final class Processor {
      * @return the value read.
      * @exception MipsException    if a translation error occurred.
      */
-    private int readMem(int vaddr, int size) throws MipsException {
+    int readMem(int vaddr, int size) throws MipsException {
         if (Lib.test(dbgProcessor))
             System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
                     + ", size=" + size);
@@ -395,8 +485,7 @@ public final class Processor {
      * @param    value    the value to store.
      * @exception MipsException    if a translation error occurred.
      */
-    private void writeMem(int vaddr, int size, int value)
-            throws MipsException {
+    void writeMem(int vaddr, int size, int value) throws MipsException {
         if (Lib.test(dbgProcessor))
             System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
                     + ", size=" + size + ", value=0x"
@@ -404,8 +493,12 @@ public final class Processor {
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-        Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-                value);
+        int paddr = translate(vaddr, size, true);
+
+        Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+        if (translatedPages != null && translatedPages[paddr / pageSize])
+            codeWritten = true;
     }
 
     /**
@@ -419,8 +512,8 @@ public final class Processor {
      * corresponding bit of register
      * <tt>nextLoadTarget</tt> will not be written.
      */
-    private void delayedLoad(int nextLoadTarget, int nextLoadValue,
-                             int nextLoadMask) {
+    void delayedLoad(int nextLoadTarget, int nextLoadValue,
+                     int nextLoadMask) {
         // complete previous delayed load, if not modifying r0
         if (loadTarget != 0) {
             int savedBits = registers[loadTarget] & ~loadMask;
@@ -461,6 +554,211 @@ public final class Processor {
         registers[regNextPC] = nextPC;
     }
 
+    /**
+     * Run the translated block starting at the current PC, translating it
+     * first if it has become hot. Returns <tt>false</tt> without changing any
+     * state if the instruction at the PC should be interpreted instead.
+     *
+     * <p>
+     * The instruction fetch is translated here exactly as
+     * <tt>Instruction.fetch()</tt> would, so a fault on the fetch is raised
+     * identically whichever path runs the instruction.
+     *
+     * @return <tt>true</tt> if a translated block was run.
+     * @exception MipsException    if an instruction in the block faulted.
+     */
+    private boolean runBlock() throws MipsException {
+        int pc = registers[regPC];
+
+        // blocks assume sequential execution, so never enter a delay slot
+        if (registers[regNextPC] != pc + 4)
+            return false;
+
+        int paddr = translate(pc, 4, false);
+        int index = paddr / 4;
+
+        TranslatedBlock block = blocks[index];
+        if (block == null || !block.matches(pc, mainMemory, paddr)) {
+            if (++blockHeat[index] < translateThreshold)
+                return false;
+
+            blockHeat[index] = 0;
+            block = translator.translate(this, pc, paddr);
+            blocks[index] = block;
+
+            if (block == null)
+                return false;
+
+            translatedPages[paddr / pageSize] = true;
+
+            Lib.debug(dbgTranslate, "translated " + block.length +
+                    " instructions at 0x" + Lib.toHexString(pc));
+        }
+
+        codeWritten = false;
+
+        if (verifyTranslation)
+            verifyBlock(block);
+
+        block.run(this, registers);
+        return true;
+    }
+
+    /**
+     * Run <i>block</i> and the interpreter side by side from the current
+     * state, without advancing simulated time, and fail an assertion if they
+     * disagree on the registers, the pending delayed load, memory, or the
+     * exception raised. All state, including the fault statistics, is
+     * restored afterwards so the real execution is unaffected.
+     *
+     * @param    block    the translated block about to run.
+     */
+    private void verifyBlock(TranslatedBlock block) {
+        int[] savedRegisters = registers.clone();
+        int savedLoadTarget = loadTarget, savedLoadValue = loadValue,
+                savedLoadMask = loadMask;
+        byte[] savedMemory = mainMemory.clone();
+        int savedPageFaults = privilege.stats.numPageFaults;
+        int savedTLBMisses = privilege.stats.numTLBMisses;
+
+        // run the translated block, counting instructions instead of ticking
+        verifyingBlock = true;
+        blockInstructions = 0;
+        MipsException translatedException = null;
+        int translatedCause = 0, translatedBadVAddr = 0;
+        try {
+            block.run(this, registers);
+        } catch (MipsException e) {
+            // the interpreter below reuses the same exception objects
+            translatedException = e;
+            translatedCause = e.cause;
+            translatedBadVAddr = e.hasBadVAddr ? e.badVAddr : 0;
+        }
+        verifyingBlock = false;
+
+        int count = blockInstructions;
+        int[] translatedRegisters = registers.clone();
+        int[] translatedLoad = {loadTarget, loadValue, loadMask};
+        byte[] translatedMemory = mainMemory.clone();
+
+        System.arraycopy(savedRegisters, 0, registers, 0, numUserRegisters);
+        loadTarget = savedLoadTarget;
+        loadValue = savedLoadValue;
+        loadMask = savedLoadMask;
+        System.arraycopy(savedMemory, 0, mainMemory, 0, mainMemory.length);
+
+        // now interpret the same instructions
+        Instruction inst = new Instruction();
+        MipsException interpretedException = null;
+        try {
+            for (int i = 0; i < count; i++)
+                inst.run();
+            if (translatedException != null)
+                inst.run();
+        } catch (MipsException e) {
+            interpretedException = e;
+        }
+
+        String where = "translated block at 0x" + Lib.toHexString(block.vaddr);
+
+        if (translatedException == null || interpretedException == null) {
+            Lib.assertTrue(translatedException == interpretedException,
+                    where + " disagrees on whether an exception occurred");
+        } else {
+            int interpretedBadVAddr = interpretedException.hasBadVAddr ?
+                    interpretedException.badVAddr : 0;
+            Lib.assertTrue(translatedCause == interpretedException.cause &&
+                            translatedBadVAddr == interpretedBadVAddr,
+                    where + " raised " + exceptionNames[translatedCause] +
+                            " instead of " +
+                            exceptionNames[interpretedException.cause]);
+        }
+
+        for (int i = 0; i < numUserRegisters; i++) {
+            Lib.assertTrue(translatedRegisters[i] == registers[i],
+                    where + " disagrees on register " + i + ": 0x" +
+                            Lib.toHexString(translatedRegisters[i]) +
+                            " instead of 0x" + Lib.toHexString(registers[i]));
+        }
+
+        Lib.assertTrue(translatedLoad[0] == loadTarget &&
+                        (loadTarget == 0 || (translatedLoad[1] == loadValue &&
+                                translatedLoad[2] == loadMask)),
+                where + " disagrees on the pending delayed load");
+
+        Lib.assertTrue(java.util.Arrays.equals(translatedMemory, mainMemory),
+                where + " disagrees on the contents of memory");
+
+        System.arraycopy(savedRegisters, 0, registers, 0, numUserRegisters);
+        loadTarget = savedLoadTarget;
+        loadValue = savedLoadValue;
+        loadMask = savedLoadMask;
+        System.arraycopy(savedMemory, 0, mainMemory, 0, mainMemory.length);
+        privilege.stats.numPageFaults = savedPageFaults;
+        privilege.stats.numTLBMisses = savedTLBMisses;
+    }
+
+    /**
+     * Called by a translated block after each of its instructions, in place of
+     * the tick the interpreter loop would perform.
+     *
+     * @return <tt>true</tt> if the block may continue with its next
+     * instruction, or <tt>false</tt> if it must return because an interrupt
+     * handler ran (and may have changed the address space or switched
+     * threads) or because code on a translated page was overwritten.
+     */
+    boolean blockTick() {
+        if (verifyingBlock) {
+            blockInstructions++;
+            return !codeWritten;
+        }
+
+        long flushes = pipeFlushes;
+
+        tick();
+
+        if (codeWritten) {
+            codeWritten = false;
+            return false;
+        }
+
+        return pipeFlushes == flushes;
+    }
+
+    /**
+     * Check the result of a signed add or subtract for overflow, as
+     * <tt>Instruction.writeBack()</tt> does.
+     *
+     * @param    dst    the 64-bit result of the operation.
+     * @return the low 32 bits of the result.
+     * @exception MipsException    if the result overflowed.
+     */
+    int checkOverflow(long dst) throws MipsException {
+        if (Lib.test(dst, 31) != Lib.test(dst, 32))
+            throw raise(exceptionOverflow);
+
+        return (int) dst;
+    }
+
+    /**
+     * Divide <i>src1</i> by <i>src2</i>, leaving the quotient in the low
+     * register and the remainder in the high register.
+     *
+     * @param    src1    the dividend.
+     * @param    src2    the divisor.
+     * @exception MipsException    if the division overflowed.
+     */
+    void divide(long src1, long src2) throws MipsException {
+        try {
+            registers[regLo] = (int) (src1 / src2);
+            registers[regHi] = (int) (src1 % src2);
+            if (registers[regLo] * src2 + registers[regHi] != src1)
+                throw new ArithmeticException();
+        } catch (ArithmeticException e) {
+            throw raise(exceptionOverflow);
+        }
+    }
+
     /**
      * Caused by a syscall instruction.
      */
@@ -623,34 +921,173 @@ public final class Processor {
      * Main memory for user programs.
      */
     private byte[] mainMemory;
+    /**
+     * Predecoded instructions, one slot per word of main memory, so that each
+     * physical page owns a contiguous run of <tt>pageSize / 4</tt> slots.
+     */
+    private DecodedInstruction[] decodeCache;
 
     /**
      * The kernel exception handler, called on every user exception.
      */
     private Runnable exceptionHandler = null;
 
+    /**
+     * Compiles hot blocks, or <tt>null</tt> if every instruction is
+     * interpreted.
+     */
+    private BlockTranslator translator = null;
+    /**
+     * The translated block starting at each word of main memory, if any.
+     */
+    private TranslatedBlock[] blocks;
+    /**
+     * How many times the interpreter has started a block at each word of main
+     * memory since it was last translated.
+     */
+    private int[] blockHeat;
+    /**
+     * <tt>true</tt> for each physical page that translated code was taken
+     * from.
+     */
+    private boolean[] translatedPages;
+    /**
+     * Number of times a block must be entered before it is translated.
+     */
+    private static final int translateThreshold = 1000;
+    /**
+     * <tt>true</tt> if every translated block should first be checked against
+     * the interpreter.
+     */
+    private boolean verifyTranslation = false;
+    /**
+     * <tt>true</tt> while <tt>verifyBlock()</tt> is running a block.
+     */
+    private boolean verifyingBlock = false;
+    /**
+     * Instructions completed by the block being verified.
+     */
+    private int blockInstructions;
+    /**
+     * Set when a store writes to a page in <tt>translatedPages</tt>.
+     */
+    private boolean codeWritten = false;
+    /**
+     * Number of times the pipe has been flushed to run an interrupt handler.
+     */
+    private long pipeFlushes = 0;
+    /**
+     * The number of user instructions that may still run before the next
+     * full tick, as granted by <tt>userTickBudget()</tt>.
+     */
+    private int tickBudget = 0;
+    /**
+     * The number of user ticks counted but not yet added to the statistics.
+     */
+    private int batchedTicks = 0;
+
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgTranslate = 'b';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
         public void flushPipe() {
+            pipeFlushes++;
             finishLoad();
         }
     }
 
-    private class MipsException extends Exception {
-        public MipsException(int cause) {
-            Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * A straight-line run of instructions compiled by
+     * <tt>BlockTranslator</tt>. The generated subclass performs exactly the
+     * state changes the interpreter would, calling <tt>blockTick()</tt> after
+     * each instruction and returning early when it says to.
+     */
+    abstract static class TranslatedBlock {
+        /**
+         * Execute the block, starting with the PC at <tt>vaddr</tt>.
+         *
+         * @param    processor    the processor to execute on.
+         * @param    registers    the processor's register file.
+         * @exception MipsException    if an instruction faulted, with the PC
+         * left pointing at it.
+         */
+        abstract void run(Processor processor, int[] registers)
+                throws MipsException;
+
+        /**
+         * Test whether this block is still valid for execution starting at
+         * virtual address <i>pc</i>, found at physical address <i>paddr</i>.
+         */
+        boolean matches(int pc, byte[] memory, int paddr) {
+            if (pc != vaddr)
+                return false;
+
+            for (int i = 0; i < length; i++) {
+                if (Lib.bytesToInt(memory, paddr + i * 4) != words[i])
+                    return false;
+            }
 
-            this.cause = cause;
+            return true;
         }
 
-        public MipsException(int cause, int badVAddr) {
-            this(cause);
+        /**
+         * The virtual address of the first instruction.
+         */
+        int vaddr;
+        /**
+         * The number of instructions in the block.
+         */
+        int length;
+        /**
+         * The instruction words the block was translated from.
+         */
+        int[] words;
+    }
+
+    /**
+     * Return the preallocated exception for <i>cause</i>, ready to be thrown.
+     * Only one exception is ever in flight, since <tt>run()</tt> handles it
+     * before executing the next instruction.
+     *
+     * @param    cause    the cause of the exception.
+     * @return the exception to throw.
+     */
+    private MipsException raise(int cause) {
+        Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+
+        MipsException e = exceptions[cause];
+        e.hasBadVAddr = false;
+        return e;
+    }
+
+    /**
+     * Return the preallocated exception for <i>cause</i>, recording the
+     * virtual address that caused it.
+     *
+     * @param    cause    the cause of the exception.
+     * @param    badVAddr    the virtual address that caused the exception.
+     * @return the exception to throw.
+     */
+    private MipsException raise(int cause, int badVAddr) {
+        MipsException e = raise(cause);
+        e.hasBadVAddr = true;
+        e.badVAddr = badVAddr;
+        return e;
+    }
 
-            hasBadVAddr = true;
-            this.badVAddr = badVAddr;
+    /**
+     * One exception per cause, reused for every occurrence of that cause.
+     */
+    private MipsException[] exceptions;
+
+    private class MipsException extends Exception {
+        private MipsException(int cause) {
+            // exceptions are preallocated, so a stack trace would be stale
+            super(exceptionNames[cause], null, false, false);
+
+            this.cause = cause;
         }
 
         public void handle() {
@@ -673,8 +1110,9 @@ public final class Processor {
             exceptionHandler.run();
         }
 
+        private final int cause;
         private boolean hasBadVAddr = false;
-        private int cause, badVAddr;
+        private int badVAddr;
     }
 
     private class Instruction {
@@ -696,78 +1134,50 @@ public final class Processor {
                 System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
                         + "\t");
 
-            value = readMem(registers[regPC], 4);
-        }
+            int pc = registers[regPC];
 
-        private void decode() {
-            op = Lib.extract(value, 26, 6);
-            rs = Lib.extract(value, 21, 5);
-            rt = Lib.extract(value, 16, 5);
-            rd = Lib.extract(value, 11, 5);
-            sh = Lib.extract(value, 6, 5);
-            func = Lib.extract(value, 0, 6);
-            target = Lib.extract(value, 0, 26);
-            imm = Lib.extend(value, 0, 16);
+            if (Lib.test(dbgProcessor))
+                System.out.println("\tfetch vaddr=0x" + Lib.toHexString(pc));
 
-            Mips info;
-            switch (op) {
-                case 0:
-                    info = Mips.specialtable[func];
-                    break;
-                case 1:
-                    info = Mips.regimmtable[rt];
-                    break;
-                default:
-                    info = Mips.optable[op];
-                    break;
-            }
+            paddr = translate(pc, 4, false);
+            value = Lib.bytesToInt(mainMemory, paddr, 4);
+        }
 
-            operation = info.operation;
-            name = info.name;
-            format = info.format;
-            flags = info.flags;
+        private void decode() {
+            DecodedInstruction decoded = predecode(paddr, value);
+
+            op = decoded.op;
+            rs = decoded.rs;
+            rt = decoded.rt;
+            rd = decoded.rd;
+            sh = decoded.sh;
+            func = decoded.func;
+            imm = decoded.imm;
+
+            operation = decoded.operation;
+            name = decoded.name;
+            format = decoded.format;
+            flags = decoded.flags;
+            size = decoded.size;
+            dstReg = decoded.dstReg;
 
             mask = 0xFFFFFFFF;
             branch = true;
 
-            // get memory access size
-            if (test(Mips.SIZEB))
-                size = 1;
-            else if (test(Mips.SIZEH))
-                size = 2;
-            else if (test(Mips.SIZEW))
-                size = 4;
-            else
-                size = 0;
-
             // get nextPC
             nextPC = registers[regNextPC] + 4;
 
-            // get dstReg
-            if (test(Mips.DSTRA))
-                dstReg = regRA;
-            else if (format == Mips.IFMT)
-                dstReg = rt;
-            else if (format == Mips.RFMT)
-                dstReg = rd;
-            else
-                dstReg = -1;
-
             // get jtarget
             if (format == Mips.RFMT)
                 jtarget = registers[rs];
             else if (format == Mips.IFMT)
-                jtarget = registers[regNextPC] + (imm << 2);
+                jtarget = registers[regNextPC] + decoded.branchOffset;
             else if (format == Mips.JFMT)
-                jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+                jtarget = (registers[regNextPC] & 0xF0000000) |
+                        decoded.jumpTarget;
             else
                 jtarget = -1;
 
-            // get imm
-            if (test(Mips.UNSIGNED)) {
-                imm &= 0xFFFF;
-            }
-
             // get addr
             addr = registers[rs] + imm;
 
@@ -931,14 +1341,7 @@ public final class Processor {
                     registers[regHi] = (int) Lib.extract(dst, 32, 32);
                     break;
                 case Mips.DIV:
-                    try {
-                        registers[regLo] = (int) (src1 / src2);
-                        registers[regHi] = (int) (src1 % src2);
-                        if (registers[regLo] * src2 + registers[regHi] != src1)
-                            throw new ArithmeticException();
-                    } catch (ArithmeticException e) {
-                        throw new MipsException(exceptionOverflow);
-                    }
+                    divide(src1, src2);
                     break;
 
                 case Mips.SLL:
@@ -1007,7 +1410,7 @@ public final class Processor {
                     break;
 
                 case Mips.SYSCALL:
-                    throw new MipsException(exceptionSyscall);
+                    throw raise(exceptionSyscall);
 
                 case Mips.LOAD:
                     value = readMem(addr, size);
@@ -1077,7 +1480,7 @@ public final class Processor {
                     System.err.println("Warning: encountered unimplemented inst");
 
                 case Mips.INVALID:
-                    throw new MipsException(exceptionIllegalInstruction);
+                    throw raise(exceptionIllegalInstruction);
 
                 default:
                     Lib.assertNotReached();
@@ -1087,7 +1490,7 @@ public final class Processor {
         private void writeBack() throws MipsException {
             // if instruction is signed, but carry bit !+ sign bit, throw
             if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-                throw new MipsException(exceptionOverflow);
+                throw raise(exceptionOverflow);
 
             if (test(Mips.DELAYEDLOAD))
                 delayedLoad(dstReg, (int) dst, mask);
@@ -1114,13 +1517,17 @@ public final class Processor {
 
             advancePC(nextPC);
 
+            // a block ends with the delay slot of a branch or jump
+            endsBlock = inDelaySlot;
+            inDelaySlot = test(Mips.BRANCH);
+
             if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
                     Lib.test(dbgFullDisassemble))
                 System.out.print("\n");
         }
 
         // state used to execute a single instruction
-        int value, op, rs, rt, rd, sh, func, target, imm;
+        int paddr, value, op, rs, rt, rd, sh, func, imm;
         int operation, format, flags;
         String name;
 
@@ -1129,9 +1536,84 @@ public final class Processor {
         long src1, src2, dst;
         int mask;
         boolean branch;
+
+        boolean inDelaySlot = false, endsBlock = false;
+    }
+
+    /**
+     * The fields of an instruction word that do not depend on processor
+     * state, extracted once and looked up in the opcode tables once.
+     */
+    static class DecodedInstruction {
+        void decode(int value) {
+            this.value = value;
+
+            op = Lib.extract(value, 26, 6);
+            rs = Lib.extract(value, 21, 5);
+            rt = Lib.extract(value, 16, 5);
+            rd = Lib.extract(value, 11, 5);
+            sh = Lib.extract(value, 6, 5);
+            func = Lib.extract(value, 0, 6);
+            imm = Lib.extend(value, 0, 16);
+
+            Mips info;
+            switch (op) {
+                case 0:
+                    info = Mips.specialtable[func];
+                    break;
+                case 1:
+                    info = Mips.regimmtable[rt];
+                    break;
+                default:
+                    info = Mips.optable[op];
+                    break;
+            }
+
+            operation = info.operation;
+            name = info.name;
+            format = info.format;
+            flags = info.flags;
+
+            // get memory access size
+            if (Lib.test(Mips.SIZEB, flags))
+                size = 1;
+            else if (Lib.test(Mips.SIZEH, flags))
+                size = 2;
+            else if (Lib.test(Mips.SIZEW, flags))
+                size = 4;
+            else
+                size = 0;
+
+            // get dstReg
+            if (Lib.test(Mips.DSTRA, flags))
+                dstReg = regRA;
+            else if (format == Mips.IFMT)
+                dstReg = rt;
+            else if (format == Mips.RFMT)
+                dstReg = rd;
+            else
+                dstReg = -1;
+
+            // branch targets are relative to nextPC, so only the offset (or
+            // the fixed low bits of a jump) can be computed ahead of time
+            branchOffset = imm << 2;
+            jumpTarget = Lib.extract(value, 0, 26) << 2;
+
+            // get imm
+            if (Lib.test(Mips.UNSIGNED, flags))
+                imm &= 0xFFFF;
+        }
+
+        int value = 0;
+        int op, rs, rt, rd, sh, func, imm;
+        int operation = Mips.INVALID, format, flags;
+        String name;
+
+        int size, dstReg;
+        int branchOffset, jumpTarget;
     }
 
-    private static class Mips {
+    static class Mips {
         Mips() {
         }
 
@@ -27,10 +27,32 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numFrames > 0) {
+	    System.out.println("Frames: free " + numFreeFrames + " of "
+			       + numFrames + " (low " + minFreeFrames
+			       + "), free runs " + numFreeFrameRuns
+			       + ", largest " + largestFreeFrameRun);
+	}
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
 
+    /**
+     * Record the state of the kernel's frame allocator, keeping track of the
+     * fewest frames that have been free at once.
+     */
+    void recordFrames(int numFrames, int numFree, int numFreeRuns,
+		      int largestFreeRun) {
+	if (this.numFrames != numFrames)
+	    minFreeFrames = numFree;
+	
+	this.numFrames = numFrames;
+	numFreeFrames = numFree;
+	minFreeFrames = Math.min(minFreeFrames, numFree);
+	numFreeFrameRuns = numFreeRuns;
+	largestFreeFrameRun = largestFreeRun;
+    }
+
     /**
      * The total amount of simulated time that has passed since Nachos
      * started.
@@ -57,6 +79,19 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The number of physical frames managed by the kernel's frame allocator,
+     * or 0 if the kernel does not allocate frames.
+     */
+    public int numFrames = 0;
+    /** The number of physical frames that are free. */
+    public int numFreeFrames = 0;
+    /** The fewest physical frames that have been free at once. */
+    public int minFreeFrames = 0;
+    /** The number of runs of contiguous free frames. */
+    public int numFreeFrameRuns = 0;
+    /** The length of the longest run of contiguous free frames. */
+    public int largestFreeFrameRun = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
@@ -6,7 +6,11 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
@@ -14,6 +18,16 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is set in the configuration and the JVM
+ * supports virtual threads, each TCB after the first runs on a virtual thread
+ * instead of a platform thread, and up to
+ * <tt>maxVirtualThreads</tt> TCBs may exist at once. Otherwise TCBs use
+ * platform threads, limited to <tt>maxThreads</tt>. Virtual threads need Java
+ * 21; Java 24 and later no longer allow the security manager Nachos installs,
+ * so Java 21 to 23, run with <tt>-Djava.security.manager=allow</tt>, are the
+ * only JVMs on which the setting has an effect.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +54,52 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	if (Config.getBoolean("TCB.virtualThreads", false))
+	    newVirtualThread = findVirtualThreadFactory();
+    }
+
+    /**
+     * Return a method handle that creates an unstarted virtual thread for a
+     * <tt>Runnable</tt>, or <tt>null</tt> if this JVM has no virtual threads.
+     * The lookup is reflective so that Nachos still builds for older JVMs.
+     */
+    private static MethodHandle findVirtualThreadFactory() {
+	try {
+	    MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+	    Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+	    Class<?> ofVirtualClass =
+		Class.forName("java.lang.Thread$Builder$OfVirtual");
+
+	    MethodHandle ofVirtual =
+		lookup.findStatic(Thread.class, "ofVirtual",
+				  MethodType.methodType(ofVirtualClass));
+	    MethodHandle unstarted =
+		lookup.findVirtual(builderClass, "unstarted",
+				   MethodType.methodType(Thread.class,
+							 Runnable.class));
+
+	    return unstarted.bindTo(ofVirtual.invoke());
+	}
+	catch (Throwable e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Create the Java thread for a TCB other than the first.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (newVirtualThread == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) newVirtualThread.invoke(target);
+	}
+	catch (Throwable e) {
+	    Lib.assertNotReached("could not create virtual thread: " + e);
+	    return null;
+	}
     }
     
     /**
@@ -66,7 +126,8 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() <
+		       (newVirtualThread != null ? maxVirtualThreads : maxThreads));
 
 	isFirstTCB = (currentTCB == null);
 
@@ -93,19 +154,23 @@ public final class TCB {
 		    public void run() { threadroot(); }
 		};
 
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
-
 	    /* The Java thread hasn't yet started, but we need to get it
 	     * blocking in yield(). We do this by temporarily turning off the
 	     * current TCB, starting the new Java thread, and waiting for it
 	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	     * it's safe to context switch to the new TCB. Starting the first
+	     * virtual thread sets up the virtual thread scheduler, so the
+	     * thread is started with privilege too.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() {
+			javaThread = newJavaThread(tcbTarget);
+			javaThread.start();
+		    }
+		});
+
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -247,6 +312,15 @@ public final class TCB {
 	    runningThreads.removeElement(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* Virtual threads are daemon threads, so if the first TCB's
+	     * platform thread returned, the JVM would exit while other TCBs
+	     * still have work to do. Park it until Nachos exits instead.
+	     */
+	    if (isFirstTCB && newVirtualThread != null) {
+		while (true)
+		    LockSupport.park(this);
+	    }
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
@@ -280,29 +354,39 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	/* In a ping-pong between two TCBs the other one often hands control
+	 * straight back, so on a multiprocessor spin briefly before parking.
+	 * Parking rather than waiting on a monitor also keeps a virtual thread
+	 * from holding on to its carrier thread.
+	 */
+	for (int i=0; i<spinLimit && !running; i++)
+	    ;
+
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
+     * and unparking the Java thread bound to it. Used in the ping-pong process of
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	/* Unparking a virtual thread may make its scheduler create a carrier
+	 * thread. NachosSecurityManager lets the scheduler do that without
+	 * privilege.
+	 */
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -332,6 +416,26 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when TCBs run on virtual threads.
+     */
+    public static final int maxVirtualThreads = 65536;
+
+    /**
+     * The number of times <tt>waitForInterrupt()</tt> checks the
+     * <tt>running</tt> flag before parking. Spinning is pointless with a
+     * single processor, since the TCB being waited for can't run meanwhile.
+     */
+    private static final int spinLimit =
+	Runtime.getRuntime().availableProcessors() > 1 ? 2000 : 0;
+
+    /**
+     * Creates the virtual thread for each new TCB, or <tt>null</tt> if TCBs
+     * use platform threads.
+     */
+    private static MethodHandle newVirtualThread = null;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -388,7 +492,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If <tt>Timer.tickless</tt> is set in the configuration, the timer instead
+ * interrupts only at the times the kernel programs with
+ * <tt>setNextInterrupt()</tt>, and never when nothing is programmed.
  */
 public final class Timer {
     /**
@@ -30,6 +35,10 @@ public final class Timer {
 		public void run() { timerInterrupt(); }
 	    };
 	
+	ticklessInterrupt = new Runnable() {
+		public void run() { ticklessInterrupt(); }
+	    };
+
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -37,12 +46,16 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	tickless = Config.getBoolean("Timer.tickless", false);
+
+	if (!tickless)
+	    scheduleInterrupt();
     }
 
     /**
      * Set the callback to use as a timer interrupt handler. The timer
-     * interrupt handler will be called approximately every 500 clock ticks.
+     * interrupt handler will be called approximately every 500 clock ticks,
+     * or only when programmed if the timer is tickless.
      *
      * @param	handler		the timer interrupt handler.
      */
@@ -50,6 +63,56 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Tests whether this timer only interrupts when programmed.
+     *
+     * @return	<tt>true</tt> if the timer is tickless.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Program a tickless timer to interrupt at the specified time, replacing
+     * any previously programmed time. If the time has already passed, the
+     * interrupt occurs on the next tick.
+     *
+     * @param	time	the time of the next timer interrupt, or
+     *			<tt>noInterrupt</tt> for no interrupt.
+     */
+    public void setNextInterrupt(long time) {
+	Lib.assertTrue(tickless);
+
+	if (time == nextInterrupt)
+	    return;
+
+	nextInterrupt = time;
+
+	// interrupts can't be cancelled, so an outdated one is ignored when it
+	// occurs
+	if (time != noInterrupt) {
+	    privilege.interrupt.schedule(Math.max(time - getTime(), 1),
+					 "timer", ticklessInterrupt);
+	}
+    }
+
+    /**
+     * Return the time a tickless timer is programmed to interrupt at.
+     *
+     * @return	the time of the next timer interrupt, or
+     *		<tt>noInterrupt</tt> if none is programmed.
+     */
+    public long getNextInterrupt() {
+	Lib.assertTrue(tickless);
+
+	return nextInterrupt;
+    }
+
+    /**
+     * The time passed to <tt>setNextInterrupt()</tt> for no interrupt.
+     */
+    public static final long noInterrupt = Long.MAX_VALUE;
+
     /**
      * Get the current time.
      *
@@ -69,6 +132,19 @@ public final class Timer {
 	    handler.run();
     }
 
+    private void ticklessInterrupt() {
+	if (nextInterrupt > getTime())
+	    return;
+
+	nextInterrupt = noInterrupt;
+	scheduleAutoGraderInterrupt();
+
+	lastTimerInterrupt = getTime();
+
+	if (handler != null)
+	    handler.run();
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
@@ -82,8 +158,12 @@ public final class Timer {
 
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
+    private Runnable ticklessInterrupt;
     private Runnable autoGraderInterrupt;
 
     private Privilege privilege;
     private Runnable handler = null;
+
+    private boolean tickless;
+    private long nextInterrupt = noInterrupt;
 }
@@ -104,7 +104,7 @@ public class NetKernel extends VMKernel {
 
         private HashMap<SocketKey, Connection> map = new HashMap<>();
 
-        private Lock lock = new Lock();
+        private Lock lock = new Lock("NetKernel.ConnectionMap.lock");
     }
 
     /**
@@ -173,7 +173,7 @@ public class NetKernel extends VMKernel {
 
         private HashMap<Integer,HashMap<SocketKey,Connection>> map = new HashMap<>();
 
-        private Lock lock = new Lock();
+        private Lock lock = new Lock("NetKernel.AwaitingConnectionMap.lock");
     }
 
     private static class SocketKey {
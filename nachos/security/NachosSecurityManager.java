@@ -293,7 +293,7 @@ public class NachosSecurityManager extends SecurityManager {
      * Verify that the caller is privileged.
      */
     public void verifyPrivilege() {
-	if (!isPrivileged())
+	if (!isPrivileged() && !creatingCarrierThread())
 	    no();
     }
 
@@ -304,10 +304,30 @@ public class NachosSecurityManager extends SecurityManager {
      * @param	perm	the permission being checked.
      */
     public void verifyPrivilege(Permission perm) {
-	if (!isPrivileged())
+	if (!isPrivileged() && !creatingCarrierThread())
 	    no(perm);
     }
 
+    /**
+     * Test if the caller is the virtual thread scheduler creating a carrier
+     * thread. When TCBs run on virtual threads, the scheduler creates
+     * carriers on demand from whatever virtual thread needs one, for example
+     * one unparking another TCB or blocking in file I/O, so this cannot be
+     * done with privilege. Only checked once a request would be refused.
+     *
+     * @return	<tt>true</tt> if a carrier thread is being created.
+     */
+    private boolean creatingCarrierThread() {
+	StackTraceElement[] stack = new Throwable().getStackTrace();
+	for (int i=0; i<stack.length; i++) {
+	    if (stack[i].getClassName().equals("java.lang.VirtualThread") &&
+		stack[i].getMethodName().startsWith(
+		    "lambda$createDefaultScheduler"))
+		return true;
+	}
+	return false;
+    }
+
     private File testDirectory;
     private boolean fullySecure;
 
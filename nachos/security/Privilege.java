@@ -158,6 +158,24 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of MIPS instructions that can be executed before
+	 * a call to <tt>tick(false)</tt> could do anything other than advance
+	 * the simulated time. Only valid until the kernel runs again.
+	 *
+	 * @return	the number of user ticks that may be batched.
+	 */
+	public int userTickBudget();
+
+	/**
+	 * Advance the simulated time by a batch of user ticks, without
+	 * checking for pending interrupts. The caller must stay within the
+	 * budget returned by <tt>userTickBudget()</tt>.
+	 *
+	 * @param	count	the number of MIPS instructions executed.
+	 */
+	public void advanceUserTicks(int count);
     }
 
     /**
@@ -0,0 +1,65 @@
+/* fork.c
+ *    Test program for fork() and its copy-on-write address spaces.
+ *
+ *    The parent fills an array spanning several pages, then forks. Parent
+ *    and child each overwrite part of the array and check that the other
+ *    process's writes never show through. The parent then joins the child,
+ *    whose exit status is the number of mismatches it found.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define NUMPAGES	4
+#define PAGEWORDS	256	/* ints in a 1KB page */
+#define SIZE		(NUMPAGES*PAGEWORDS)
+
+int data[SIZE];
+
+/* count the entries of data[from..to) not equal to sign*i */
+int check(int from, int to, int sign)
+{
+  int i, bad = 0;
+
+  for (i=from; i<to; i++)
+    if (data[i] != sign*i)
+      bad++;
+
+  return bad;
+}
+
+int main()
+{
+  int i, pid, status, bad;
+
+  for (i=0; i<SIZE; i++)
+    data[i] = i;
+
+  pid = fork();
+  if (pid == -1) {
+    printf("fork failed\n");
+    return 1;
+  }
+
+  if (pid == 0) {
+    /* child: negate the first half, leave the second half shared */
+    for (i=0; i<SIZE/2; i++)
+      data[i] = -i;
+
+    exit(check(0, SIZE/2, -1) + check(SIZE/2, SIZE, 1));
+  }
+
+  /* parent: negate the second half while the child runs */
+  for (i=SIZE/2; i<SIZE; i++)
+    data[i] = -i;
+
+  if (join(pid, &status) != 1) {
+    printf("child %d did not exit normally\n", pid);
+    return 1;
+  }
+
+  bad = check(0, SIZE/2, 1) + check(SIZE/2, SIZE, -1);
+  printf("parent: %d bad, child: %d bad\n", bad, status);
+
+  return (bad == 0 && status == 0) ? 0 : 1;
+}
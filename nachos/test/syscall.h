@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +54,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -109,6 +110,21 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a new child process that is a copy of the current process, with a
+ * new unique process ID. The child starts running by returning from fork(),
+ * with the same memory and registers as the parent and the same files open,
+ * each at the same position. After that, the two processes are independent:
+ * changes one makes to its memory are not seen by the other, and they each
+ * have their own file positions. Memory is copied lazily, a page at a time,
+ * when one of the processes first writes it.
+ *
+ * In the parent, fork() returns the child's process ID, which can be passed
+ * to join(). In the child, it returns 0. On error, returns -1 in the parent,
+ * and no child is created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
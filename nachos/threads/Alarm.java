@@ -2,8 +2,10 @@ package nachos.threads;
 
 import nachos.machine.Lib;
 import nachos.machine.Machine;
+import nachos.machine.Stats;
+import nachos.machine.Timer;
 
-import java.util.LinkedList;
+import java.util.HashMap;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
@@ -12,7 +14,9 @@ import java.util.LinkedList;
 public class Alarm {
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
-     * alarm's callback.
+     * alarm's callback. If the timer is tickless, the alarm programs it for
+     * the earliest wake time, or for the end of the current time slice if
+     * that is sooner.
      *
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
@@ -23,6 +27,12 @@ public class Alarm {
                 timerInterrupt();
             }
         });
+
+        if (Machine.timer().isTickless()) {
+            boolean intStatus = Machine.interrupt().disable();
+            programTimer();
+            Machine.interrupt().restore(intStatus);
+        }
     }
 
     /**
@@ -33,13 +43,17 @@ public class Alarm {
      */
     public void timerInterrupt() {
         boolean preState = Machine.interrupt().disable();//disable interrupt
-        for (ThreadWaitTime t : ThreadsToWait) {
-            if (t.wakeTime <= Machine.timer().getTime()) {//if this thread has waited for enough time,wake it up
-                ThreadsToWait.remove(t);
-                t.waitThread.ready();
-            }
+        long time = Machine.timer().getTime();
+        // wake every thread that has waited long enough, earliest first
+        while (numWaiting > 0 && waiting[0].wakeTime <= time) {
+            ThreadWaitTime t = waiting[0];
+            remove(t);
+            t.waitThread.ready();
         }
+        if (Machine.timer().isTickless())
+            programTimer();
         Machine.interrupt().restore(preState);
+        ThreadedKernel.scheduler.timeSliceExpired();
         KThread.yield();
     }
 
@@ -62,20 +76,166 @@ public class Alarm {
         boolean intStatus = Machine.interrupt().disable();//disable interrupt
         long wakeTime = Machine.timer().getTime() + x;
         ThreadWaitTime waitingThread = new ThreadWaitTime(wakeTime, KThread.currentThread());
-        ThreadsToWait.add(waitingThread);//Add the current thread to list
+        add(waitingThread);//Add the current thread to the heap
+        if (Machine.timer().isTickless() &&
+                wakeTime < Machine.timer().getNextInterrupt())
+            Machine.timer().setNextInterrupt(wakeTime);
         KThread.sleep();//Put the current thread to sleep
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Cancel any timer set by <i>thread</i>, effectively waking up the thread
+     * immediately (placing it in the scheduler ready set) and returning
+     * <tt>true</tt>. If <i>thread</i> has no timer set, return <tt>false</tt>.
+     *
+     * @param    thread    the thread whose timer should be cancelled.
+     * @return <tt>true</tt> if <i>thread</i> was waiting.
+     */
+    public boolean cancel(KThread thread) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        ThreadWaitTime t = waitingByThread.get(thread);
+        if (t != null) {
+            remove(t);
+            thread.ready();
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return t != null;
+    }
+
+    /**
+     * Return the earliest time at which a waiting thread should wake up.
+     *
+     * @return the earliest wake time, or <tt>Timer.noInterrupt</tt> if no
+     * thread is waiting.
+     */
+    public long nextWakeTime() {
+        return numWaiting > 0 ? waiting[0].wakeTime : Timer.noInterrupt;
+    }
+
+    /**
+     * Called when a thread is about to run after the idle thread, so that a
+     * tickless timer starts a time slice again. Interrupts must be disabled.
+     */
+    void idleEnded() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (!Machine.timer().isTickless())
+            return;
+
+        long sliceEnd = Machine.timer().getTime() + Stats.TimerTicks;
+        if (sliceEnd < Machine.timer().getNextInterrupt())
+            Machine.timer().setNextInterrupt(sliceEnd);
+    }
+
+    /**
+     * Program a tickless timer for the earliest wake time, or for the end of a
+     * new time slice if that is sooner. The idle thread needs no time slice,
+     * since it is only running because no other thread is ready.
+     */
+    private void programTimer() {
+        long next = nextWakeTime();
+
+        if (!KThread.isIdle())
+            next = Math.min(next, Machine.timer().getTime() + Stats.TimerTicks);
+
+        Machine.timer().setNextInterrupt(next);
+    }
+
+    /**
+     * Add a waiting thread to the heap.
+     */
+    private static void add(ThreadWaitTime t) {
+        Lib.assertTrue(!waitingByThread.containsKey(t.waitThread));
+
+        if (numWaiting == waiting.length)
+            waiting = java.util.Arrays.copyOf(waiting, numWaiting * 2);
+
+        waitingByThread.put(t.waitThread, t);
+        siftUp(numWaiting++, t);
+    }
+
+    /**
+     * Remove a waiting thread from anywhere in the heap.
+     */
+    private static void remove(ThreadWaitTime t) {
+        Lib.assertTrue(waiting[t.index] == t);
 
-    private class ThreadWaitTime {
+        waitingByThread.remove(t.waitThread);
+
+        ThreadWaitTime last = waiting[--numWaiting];
+        waiting[numWaiting] = null;
+
+        if (last != t) {
+            // the last entry may belong above or below the hole
+            if (t.index > 0 && last.before(waiting[(t.index - 1) / 2]))
+                siftUp(t.index, last);
+            else
+                siftDown(t.index, last);
+        }
+    }
+
+    private static void siftUp(int index, ThreadWaitTime t) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!t.before(waiting[parent]))
+                break;
+
+            place(index, waiting[parent]);
+            index = parent;
+        }
+
+        place(index, t);
+    }
+
+    private static void siftDown(int index, ThreadWaitTime t) {
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= numWaiting)
+                break;
+
+            if (child + 1 < numWaiting && waiting[child + 1].before(waiting[child]))
+                child++;
+            if (!waiting[child].before(t))
+                break;
+
+            place(index, waiting[child]);
+            index = child;
+        }
+
+        place(index, t);
+    }
+
+    private static void place(int index, ThreadWaitTime t) {
+        waiting[index] = t;
+        t.index = index;
+    }
+
+    private static class ThreadWaitTime {
         ThreadWaitTime(long wakeTime, KThread waitThread) {
             this.wakeTime = wakeTime;
             this.waitThread = waitThread;
+            this.order = numCreated++;
+        }
+
+        /**
+         * Threads wake in order of wake time, and threads with the same wake
+         * time in the order they went to sleep.
+         */
+        boolean before(ThreadWaitTime t) {
+            if (wakeTime != t.wakeTime)
+                return wakeTime < t.wakeTime;
+            else
+                return order < t.order;
         }
 
         KThread waitThread;
         long wakeTime;
+        long order;
+        /** The position of this thread in the heap. */
+        int index;
     }
 
     public static void selfTest() {
@@ -83,6 +243,58 @@ public class Alarm {
         KThread test1 = new KThread(new PingTest(1));
         test1.fork();
         new PingTest(0).run();
+
+        cancelTest();
+    }
+
+    /**
+     * Put many threads to sleep for random times, cancel every third one, and
+     * check that each wakes no earlier than it should and that the cancelled
+     * ones wake right away.
+     */
+    private static void cancelTest() {
+        final Alarm alarm = ThreadedKernel.alarm;
+        final int numThreads = 100;
+        KThread[] threads = new KThread[numThreads];
+        final long[] woke = new long[numThreads];
+        long[] wakeTime = new long[numThreads];
+
+        long start = Machine.timer().getTime();
+        for (int i = 0; i < numThreads; i++) {
+            final int which = i;
+            final long duration = 100000 + Lib.random(100000);
+            wakeTime[i] = start + duration;
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    alarm.waitUntil(duration);
+                    woke[which] = Machine.timer().getTime();
+                }
+            }).setName("sleeper " + i);
+            threads[i].fork();
+        }
+
+        // let every sleeper reach waitUntil()
+        while (numWaiting < numThreads)
+            alarm.waitUntil(100);
+
+        long cancelTime = Machine.timer().getTime();
+        for (int i = 0; i < numThreads; i += 3)
+            Lib.assertTrue(alarm.cancel(threads[i]));
+
+        for (int i = 0; i < numThreads; i++)
+            threads[i].join();
+
+        for (int i = 0; i < numThreads; i++) {
+            if (i % 3 == 0)
+                Lib.assertTrue(woke[i] >= cancelTime && woke[i] < wakeTime[i]);
+            else
+                Lib.assertTrue(woke[i] >= wakeTime[i]);
+        }
+        Lib.assertTrue(!alarm.cancel(threads[0]));
+        Lib.assertTrue(alarm.nextWakeTime() == Timer.noInterrupt);
+
+        System.out.println("### " + numThreads + " sleepers woke in time, " +
+                (numThreads + 2) / 3 + " cancelled");
     }
 
     private static class PingTest implements Runnable {
@@ -112,6 +324,14 @@ public class Alarm {
     }
 
     private static final char dbgAlarm = 'a';
-    private static LinkedList<ThreadWaitTime> ThreadsToWait = new LinkedList<ThreadWaitTime>();
+    /**
+     * The waiting threads, as a binary heap ordered by wake time. Shared by
+     * all alarms, since only the last one allocated gets timer interrupts.
+     */
+    private static ThreadWaitTime[] waiting = new ThreadWaitTime[16];
+    private static int numWaiting = 0;
+    private static HashMap<KThread, ThreadWaitTime> waitingByThread =
+            new HashMap<KThread, ThreadWaitTime>();
+    private static long numCreated = 0;
 
 }
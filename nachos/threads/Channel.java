@@ -0,0 +1,331 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A bounded buffer of 32-bit words that any number of threads may send to
+ * and receive from. Unlike a <tt>Communicator</tt>, a sender does not wait
+ * for a receiver unless the buffer is full, and words are moved in batches,
+ * so a thread can hand over many words for the cost of one acquisition of
+ * the channel lock.
+ *
+ * <p>
+ * Words sent by one thread are received in the order they were sent. A
+ * channel may be closed, after which nothing more can be sent, and receivers
+ * get what is left in the buffer and then an end-of-channel indication.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param capacity the number of words the channel can hold before
+     *                 senders have to wait.
+     */
+    public Channel(int capacity) {
+        Lib.assertTrue(capacity > 0);
+
+        buffer = new int[capacity];
+        lock = new Lock();
+        notEmpty = new Condition2(lock);
+        notFull = new Condition2(lock);
+    }
+
+    /**
+     * Send one word, waiting for room in the buffer if necessary.
+     *
+     * @param word the word to send.
+     * @return <tt>true</tt> if the word was sent, or <tt>false</tt> if the
+     * channel was closed.
+     */
+    public boolean send(int word) {
+        lock.acquire();
+
+        // as put() does, but the word is kept in a local across the sleep
+        while (count == buffer.length && !closed)
+            notFull.sleep();
+
+        boolean sent = !closed;
+        if (sent) {
+            buffer[(head + count) % buffer.length] = word;
+            count++;
+            notEmpty.wake();
+        }
+        if (count < buffer.length)
+            notFull.wake();
+
+        lock.release();
+
+        return sent;
+    }
+
+    /**
+     * Send a series of words, waiting for room in the buffer as often as
+     * necessary. The words are sent in order, but if the buffer fills up,
+     * words sent by other threads may come between them.
+     *
+     * @param words the words to send.
+     * @return the number of words sent, which is less than
+     * <tt>words.length</tt> only if the channel was closed.
+     */
+    public int send(int[] words) {
+        return send(words, words.length);
+    }
+
+    /**
+     * Send the first <i>length</i> words of an array, as
+     * <tt>send(int[])</tt> does.
+     *
+     * @param words  the words to send.
+     * @param length the number of words to send; at most
+     *               <tt>words.length</tt>.
+     * @return the number of words sent, which is less than <i>length</i>
+     * only if the channel was closed.
+     */
+    public int send(int[] words, int length) {
+        Lib.assertTrue(length >= 0 && length <= words.length);
+
+        lock.acquire();
+        int sent = put(words, length);
+        lock.release();
+
+        return sent;
+    }
+
+    /**
+     * Receive up to <i>max</i> words, waiting until at least one is
+     * available.
+     *
+     * @param words the array to receive the words into.
+     * @param max   the largest number of words to receive; at most
+     *              <tt>words.length</tt>.
+     * @return the number of words received, which is 0 only if the channel
+     * is closed and empty.
+     */
+    public int receive(int[] words, int max) {
+        Lib.assertTrue(max > 0 && max <= words.length);
+
+        lock.acquire();
+
+        while (count == 0 && !closed)
+            notEmpty.sleep();
+
+        int received = Math.min(count, max);
+        for (int i = 0; i < received; i++) {
+            words[i] = buffer[head];
+            head = (head + 1) % buffer.length;
+        }
+        count -= received;
+
+        if (received > 0)
+            notFull.wake();
+        // let another receiver have what was left
+        if (count > 0)
+            notEmpty.wake();
+
+        lock.release();
+        return received;
+    }
+
+    /**
+     * Close this channel. Threads waiting to send give up, and threads
+     * waiting to receive get what is left in the buffer.
+     */
+    public void close() {
+        lock.acquire();
+
+        closed = true;
+        notEmpty.wakeAll();
+        notFull.wakeAll();
+
+        lock.release();
+    }
+
+    /**
+     * Copy words into the buffer, waiting for room whenever it is full. The
+     * lock must be held.
+     */
+    private int put(int[] words, int length) {
+        int sent = 0;
+        while (sent < length) {
+            while (count == buffer.length && !closed)
+                notFull.sleep();
+            if (closed)
+                break;
+
+            int n = Math.min(length - sent, buffer.length - count);
+            for (int i = 0; i < n; i++)
+                buffer[(head + count + i) % buffer.length] = words[sent + i];
+            count += n;
+            sent += n;
+
+            notEmpty.wake();
+        }
+
+        // let another sender fill what is left
+        if (count < buffer.length)
+            notFull.wake();
+
+        return sent;
+    }
+
+    private static class Transfer implements Runnable {
+        Transfer(Channel channel, Communicator communicator, boolean sender,
+                 int words, int batch) {
+            this.channel = channel;
+            this.communicator = communicator;
+            this.sender = sender;
+            this.words = words;
+            this.batch = batch;
+        }
+
+        public void run() {
+            int[] buf = new int[batch];
+            int done = 0;
+            while (done < words) {
+                int n = Math.min(batch, words - done);
+                if (communicator != null) {
+                    if (sender)
+                        communicator.speak(done);
+                    else
+                        communicator.listen();
+                    n = 1;
+                }
+                else if (sender) {
+                    for (int i = 0; i < n; i++)
+                        buf[i] = done + i;
+                    Lib.assertTrue(channel.send(buf, n) == n);
+                }
+                else {
+                    n = channel.receive(buf, n);
+                    Lib.assertTrue(n > 0);
+                }
+                done += n;
+            }
+        }
+
+        private Channel channel;
+        private Communicator communicator;
+        private boolean sender;
+        private int words, batch;
+    }
+
+    /**
+     * Move words from two senders to two receivers, each thread handling the
+     * same number of words, and print how fast that went.
+     */
+    private static void transfer(String name, Channel channel,
+                                 Communicator communicator, int words,
+                                 int batch) {
+        KThread[] threads = new KThread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new KThread(new Transfer(channel, communicator,
+                    i < 2, words, batch)).setName(name + " " + i);
+        }
+
+        long startTicks = Machine.timer().getTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].fork();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        long elapsed = System.nanoTime() - start;
+        long ticks = Machine.timer().getTime() - startTicks;
+
+        System.out.println(String.format("  %-28s %8d ticks %6d ms "
+                        + "%8.3f words/tick %10d words/s", name, ticks,
+                elapsed / 1000000, 2.0 * words / ticks,
+                (long) (2 * words * 1e9 / elapsed)));
+    }
+
+    /**
+     * Compare a channel against a <tt>Communicator</tt> moving the same
+     * number of words between two senders and two receivers.
+     */
+    public static void benchmark() {
+        final int words = 10000;
+
+        System.out.println("Channel.benchmark: " + 2 * words + " words");
+        transfer("Communicator", null, new Communicator(), words, 1);
+        transfer("Channel(64), 1 word", new Channel(64), null, words, 1);
+        transfer("Channel(64), 16 words", new Channel(64), null, words, 16);
+        transfer("Channel(256), 64 words", new Channel(256), null, words, 64);
+    }
+
+    /**
+     * Test that words arrive in order, through a buffer smaller than the
+     * batches, and that closing the channel ends both sending and receiving.
+     */
+    public static void selfTest() {
+        final Channel channel = new Channel(5);
+        final int words = 700;
+
+        KThread sender = new KThread(new Runnable() {
+            public void run() {
+                int[] batch = new int[7];
+                for (int next = 0; next < words; next += batch.length) {
+                    for (int i = 0; i < batch.length; i++)
+                        batch[i] = next + i;
+                    channel.send(batch);
+                }
+                channel.close();
+            }
+        }).setName("channel sender");
+        sender.fork();
+
+        int[] received = new int[3];
+        int expected = 0;
+        int n;
+        while ((n = channel.receive(received, received.length)) > 0) {
+            for (int i = 0; i < n; i++)
+                Lib.assertTrue(received[i] == expected++);
+        }
+        sender.join();
+
+        Lib.assertTrue(expected == words);
+        Lib.assertTrue(!channel.send(0));
+        Lib.assertTrue(channel.receive(received, 1) == 0);
+
+        singleWordTest();
+    }
+
+    /**
+     * Test that single words from several senders waiting on a full channel
+     * all arrive exactly once, each sender's in order.
+     */
+    private static void singleWordTest() {
+        final Channel channel = new Channel(1);
+        final int senders = 3, words = 5;
+
+        KThread[] threads = new KThread[senders];
+        for (int t = 0; t < senders; t++) {
+            final int base = 100 * (t + 1);
+            threads[t] = new KThread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < words; i++)
+                        Lib.assertTrue(channel.send(base + i));
+                }
+            }).setName("channel word sender " + t);
+            threads[t].fork();
+        }
+
+        int[] next = new int[senders];
+        int[] received = new int[1];
+        for (int n = 0; n < senders * words; n++) {
+            Lib.assertTrue(channel.receive(received, 1) == 1);
+            int t = received[0] / 100 - 1;
+            Lib.assertTrue(t >= 0 && t < senders);
+            Lib.assertTrue(received[0] == 100 * (t + 1) + next[t]++);
+        }
+        for (int t = 0; t < senders; t++) {
+            threads[t].join();
+            Lib.assertTrue(next[t] == words);
+        }
+    }
+
+    private int[] buffer;
+    private int head = 0, count = 0;
+    private boolean closed = false;
+
+    private Lock lock;
+    private Condition2 notEmpty, notFull;
+}
@@ -5,7 +5,8 @@ import nachos.machine.*;
 import java.util.LinkedList;
 
 /**
- * An implementation of condition variables built upon semaphores.
+ * An implementation of condition variables built upon the wait queue of the
+ * associated lock.
  *
  * <p>
  * A condition variable is a synchronization primitive that does not have
@@ -32,9 +33,10 @@ import java.util.LinkedList;
  * <p>
  * In Nachos, condition variables are summed to obey <i>Mesa-style</i>
  * semantics. When a <tt>wake()</tt> or <tt>wakeAll()</tt> wakes up another
- * thread, the woken thread is simply put on the ready list, and it is the
- * responsibility of the woken thread to reacquire the lock (this reacquire is
- * taken core of in <tt>sleep()</tt>).
+ * thread, the woken thread is moved to the wait queue of the lock, which the
+ * waker is holding, and is put on the ready list only once it has been given
+ * the lock. The woken thread thus never runs just to find the lock busy and
+ * block again.
  *
  * <p>
  * By contrast, some implementations of condition variables obey
@@ -59,9 +61,26 @@ public class Condition {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition(Lock conditionLock) {
+	this(conditionLock, null);
+    }
+
+    /**
+     * Allocate a new condition variable with a name, which identifies it when
+     * contention is profiled.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name of the condition variable, or
+     *				<tt>null</tt> to name it by the method
+     *				allocating it.
+     */
+    public Condition(Lock conditionLock, String name) {
 	this.conditionLock = conditionLock;
 
-	waitQueue = new LinkedList<Semaphore>();
+	waitQueue = new LinkedList<KThread>();
+
+	if (LockProfile.isEnabled())
+	    profile = LockProfile.forName("Condition", name);
     }
 
     /**
@@ -71,20 +90,28 @@ public class Condition {
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
      *
      * <p>
-     * This implementation uses semaphores to implement this, by allocating a
-     * semaphore for each waiting thread. The waker will <tt>V()</tt> this
-     * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-     * though the lock is released before caling <tt>P()</tt>.
+     * Interrupts are disabled from before the lock is released until the
+     * thread is asleep, so there is no chance the sleeper will miss the
+     * wake-up. The waker moves the sleeper to the wait queue of the lock, so
+     * the sleeper already holds the lock again when it next runs.
      */
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
-	waitQueue.add(waiter);
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	waitQueue.add(thread);
 
+	long start = (profile != null) ? Machine.timer().getTime() : 0;
 	conditionLock.release();
-	waiter.P();
-	conditionLock.acquire();	
+	KThread.sleep();
+
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+	if (profile != null)
+	    profile.slept(Machine.timer().getTime() - start);
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -95,7 +122,7 @@ public class Condition {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 	if (!waitQueue.isEmpty())
-	    ((Semaphore) waitQueue.removeFirst()).V();
+	    conditionLock.addWaiter(waitQueue.removeFirst());
     }
 
     /**
@@ -110,5 +137,6 @@ public class Condition {
     }
 
     private Lock conditionLock;
-    private LinkedList<Semaphore> waitQueue;
+    private LockProfile profile = null;
+    private LinkedList<KThread> waitQueue;
 }
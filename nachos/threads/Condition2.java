@@ -22,7 +22,23 @@ public class Condition2 {
      * <tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock) {
+        this(conditionLock, null);
+    }
+
+    /**
+     * Allocate a new condition variable with a name, which identifies it when
+     * contention is profiled.
+     *
+     * @param    conditionLock    the lock associated with this condition
+     * variable.
+     * @param    name             the name of the condition variable, or
+     * <tt>null</tt> to name it by the method allocating it.
+     */
+    public Condition2(Lock conditionLock, String name) {
         this.conditionLock = conditionLock;
+
+        if (LockProfile.isEnabled())
+            profile = LockProfile.forName("Condition", name);
     }
 
     /**
@@ -30,6 +46,11 @@ public class Condition2 {
      * variable until another thread wakes it using <tt>wake()</tt>. The
      * current thread must hold the associated lock. The thread will
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
+     *
+     * <p>
+     * A thread woken by <tt>wake()</tt> is moved to the wait queue of the
+     * associated lock rather than made ready, so it already holds the lock
+     * when it runs.
      */
     public void sleep() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
@@ -37,11 +58,14 @@ public class Condition2 {
         boolean intStatus = Machine.interrupt().disable();
         waitQueue.waitForAccess(KThread.currentThread());
         haveWaiter = true;
+        long start = (profile != null) ? Machine.timer().getTime() : 0;
         //释放锁
         conditionLock.release();
-        //线程挂起
+        //线程挂起，被唤醒时已由唤醒者移入锁的等待队列，醒来即持有锁
         KThread.sleep();
-        conditionLock.acquire();
+        Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+        if (profile != null)
+            profile.slept(Machine.timer().getTime() - start);
         Machine.interrupt().restore(intStatus);
 
     }
@@ -57,7 +81,7 @@ public class Condition2 {
 
         KThread waitThread = waitQueue.nextThread();
         if (waitThread != null) {
-            waitThread.ready();
+            conditionLock.addWaiter(waitThread);
         } else {
             haveWaiter = false;
         }
@@ -79,6 +103,7 @@ public class Condition2 {
     }
 
     private Lock conditionLock;
+    private LockProfile profile = null;
     //曾经考虑过在waitQueue.nextThread()时判断非空，但当执行waitAll()的while时
     //由于我们只需要判断状态而不需要取出线程，于是选择定义了一个状态位来表示当前的
     //waitQueue中有无线程
@@ -54,6 +54,8 @@ public class KThread {
             currentThread = this;
             tcb = TCB.currentTCB();
             name = "main";
+            stats.setName(name);
+            stats.dispatched(Machine.timer().getTime());
             restoreState();
 
             createIdleThread();
@@ -95,6 +97,7 @@ public class KThread {
      */
     public KThread setName(String name) {
         this.name = name;
+        stats.setName(name);
         return this;
     }
 
@@ -118,6 +121,17 @@ public class KThread {
         return (name + " (#" + id + ")");
     }
 
+    /**
+     * Get the statistics recording where simulated time went for this
+     * thread: how long it ran, how long it waited to run, and how often it
+     * gave up the processor.
+     *
+     * @return the statistics of this thread.
+     */
+    public ThreadStats getStats() {
+        return stats;
+    }
+
     /**
      * Deterministically and consistently compare this thread to another
      * thread.
@@ -275,8 +289,12 @@ public class KThread {
         Lib.assertTrue(status != statusReady);
 
         status = statusReady;
-        if (this != idleThread)
+        if (this != idleThread) {
+            // the idle thread runs only when nothing else is ready, so it
+            // never waits
+            stats.readied(Machine.timer().getTime());
             readyQueue.waitForAccess(this);
+        }
 
         Machine.autoGrader().readyThread(this);
     }
@@ -335,14 +353,43 @@ public class KThread {
         idleThread.fork();
     }
 
+    /**
+     * Tests whether the idle thread is the current thread, which means that no
+     * other thread was ready when it was last scheduled.
+     *
+     * @return <tt>true</tt> if the idle thread is running.
+     */
+    static boolean isIdle() {
+        return currentThread == idleThread;
+    }
+
+    /**
+     * Tests whether this thread is in the ready state. When the current thread
+     * is added to a queue, this tells a scheduler whether it is yielding the
+     * CPU or blocking.
+     *
+     * @return <tt>true</tt> if this thread is ready.
+     */
+    boolean isReady() {
+        return status == statusReady;
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
      */
     private static void runNextThread() {
         KThread nextThread = readyQueue.nextThread();
-        if (nextThread == null)
+        if (nextThread == null) {
+            // the idle thread would only yield to itself, burning a kernel
+            // tick each time, until an interrupt handler readies a thread
+            if (currentThread == idleThread)
+                Machine.interrupt().fastForward();
+
             nextThread = idleThread;
+        } else if (currentThread == idleThread && ThreadedKernel.alarm != null) {
+            ThreadedKernel.alarm.idleEnded();
+        }
 
         nextThread.run();
     }
@@ -372,6 +419,13 @@ public class KThread {
 
         Machine.yield();
 
+        if (this != currentThread) {
+            long time = Machine.timer().getTime();
+            currentThread.stats.descheduled(time,
+                    currentThread.status != statusReady);
+            stats.dispatched(time);
+        }
+
         currentThread.saveState();
 
         Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
@@ -443,6 +497,39 @@ public class KThread {
 //	new Condition2Test().simpleCondition2Test();
 //        SpeakTest();
 //        Boat.selfTest();
+//        switchBenchmark();
+    }
+
+    /**
+     * Measure context switches per second by ping-ponging between two threads
+     * with a pair of semaphores. Each round trip is two switches.
+     */
+    public static void switchBenchmark() {
+        final int rounds = 100000;
+        final Semaphore ping = new Semaphore(0);
+        final Semaphore pong = new Semaphore(0);
+
+        KThread ponger = new KThread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < rounds; i++) {
+                    ping.P();
+                    pong.V();
+                }
+            }
+        }).setName("ponger");
+        ponger.fork();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            ping.V();
+            pong.P();
+        }
+        long elapsed = System.nanoTime() - start;
+        ponger.join();
+
+        System.out.println("KThread.switchBenchmark: " + 2 * rounds +
+                " context switches in " + elapsed / 1000000 + "ms, " +
+                (long) (2 * rounds * 1e9 / elapsed) + " switches/s");
     }
     public static void SpeakTest() {
         System.out.println("\n测试Communicator类：");
@@ -525,6 +612,10 @@ public class KThread {
      * threads.
      */
     private int id = numCreated++;
+    /**
+     * Where simulated time went for this thread.
+     */
+    private ThreadStats stats = new ThreadStats(name, id);
     /**
      * Number of times the KThread constructor was called.
      */
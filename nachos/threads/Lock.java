@@ -24,6 +24,19 @@ public class Lock {
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new lock with a name, which identifies it when lock
+     * contention is profiled. The lock will initially be <i>free</i>.
+     *
+     * @param	name	the name of the lock, or <tt>null</tt> to name it by
+     *			the method allocating it.
+     */
+    public Lock(String name) {
+	if (LockProfile.isEnabled())
+	    profile = LockProfile.forName("Lock", name);
     }
 
     /**
@@ -37,12 +50,19 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
+	    long start = (profile != null) ? Machine.timer().getTime() : 0;
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
+	    if (profile != null)
+		profile.acquired(thread, true, Machine.timer().getTime() - start);
 	}
 	else {
 	    waitQueue.acquire(thread);
 	    lockHolder = thread;
+	    if (profile != null) {
+		profile.acquired(thread, false, 0);
+		acquireTime = Machine.timer().getTime();
+	    }
 	}
 
 	Lib.assertTrue(lockHolder == thread);
@@ -50,6 +70,28 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Make a blocked thread wait for this lock as if it had called
+     * <tt>acquire()</tt>, so that it is only made ready once it has been
+     * given the lock. The current thread must hold this lock.
+     *
+     * <p>
+     * This is how a condition variable wakes a thread: the thread woken
+     * could not get far without the lock, which its waker is still holding,
+     * so making it ready would only have it run and block again.
+     *
+     * @param	thread	the blocked thread.
+     */
+    void addWaiter(KThread thread) {
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	waitQueue.waitForAccess(thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -58,8 +100,15 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
+	if (profile != null)
+	    profile.released(Machine.timer().getTime() - acquireTime);
+
+	// a thread given the lock holds it from now, not from when it runs
+	if ((lockHolder = waitQueue.nextThread()) != null) {
 	    lockHolder.ready();
+	    if (profile != null)
+		acquireTime = Machine.timer().getTime();
+	}
 	
 	Machine.interrupt().restore(intStatus);
     }
@@ -74,6 +123,8 @@ public class Lock {
     }
 
     private KThread lockHolder = null;
+    private LockProfile profile = null;
+    private long acquireTime;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
@@ -0,0 +1,310 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Contention statistics for the locks, semaphores and condition variables
+ * allocated under one name. Profiling is off unless
+ * <tt>LockProfile.enabled</tt> is set, in which case each synchronization
+ * object records how often it was acquired, how often a thread had to wait
+ * for it and for how many ticks, how long locks were held, and which threads
+ * waited the longest. A thread sleeping on a condition variable is waiting
+ * for an event, not for the variable, so condition variables count their
+ * sleeps and the ticks slept separately instead.
+ *
+ * <p>
+ * Objects allocated without a name are named by the method that allocated
+ * them, so that, for example, the locks of every <tt>SynchList</tt> share one
+ * profile. Recording an acquisition allocates nothing.
+ */
+public final class LockProfile {
+    private LockProfile(String kind, String name) {
+        this.kind = kind;
+        this.name = name;
+    }
+
+    /**
+     * Test whether contention profiling is on.
+     *
+     * @return <tt>true</tt> if synchronization objects should be profiled.
+     */
+    public static boolean isEnabled() {
+        if (enabled == null)
+            enabled = Config.getBoolean("LockProfile.enabled", false);
+
+        return enabled;
+    }
+
+    /**
+     * Return the profile shared by the synchronization objects of one kind
+     * with the given name, creating it if necessary. Profiling must be on.
+     *
+     * @param kind the kind of object, such as <tt>"Lock"</tt>.
+     * @param name the name of the object, or <tt>null</tt> to name it by the
+     *             method allocating it.
+     * @return the profile.
+     */
+    static LockProfile forName(String kind, String name) {
+        Lib.assertTrue(isEnabled());
+
+        if (name == null)
+            name = allocationSite();
+
+        synchronized (profiles) {
+            String key = kind + " " + name;
+            LockProfile profile = profiles.get(key);
+            if (profile == null) {
+                profile = new LockProfile(kind, name);
+                profiles.put(key, profile);
+            }
+            return profile;
+        }
+    }
+
+    /**
+     * Return the first method on the stack that is not this class or a
+     * constructor of a synchronization class, which is the one allocating an
+     * object.
+     */
+    private static String allocationSite() {
+        for (StackTraceElement frame : new Throwable().getStackTrace()) {
+            String className = frame.getClassName();
+            if (className.equals(LockProfile.class.getName()))
+                continue;
+            if (frame.getMethodName().equals("<init>")
+                    && (className.equals(Lock.class.getName())
+                    || className.equals(Semaphore.class.getName())
+                    || className.equals(Condition.class.getName())
+                    || className.equals(Condition2.class.getName())))
+                continue;
+
+            return className.substring(className.lastIndexOf('.') + 1)
+                    + "." + frame.getMethodName() + ":" + frame.getLineNumber();
+        }
+
+        return "(unknown)";
+    }
+
+    /**
+     * Record an acquisition.
+     *
+     * @param thread    the acquiring thread.
+     * @param contended <tt>true</tt> if the thread had to wait.
+     * @param waitTicks the ticks the thread waited.
+     */
+    void acquired(KThread thread, boolean contended, long waitTicks) {
+        acquisitions++;
+        if (!contended)
+            return;
+
+        contentions++;
+        totalWait += waitTicks;
+        if (waitTicks > maxWait)
+            maxWait = waitTicks;
+
+        recordWaiter(thread, waitTicks);
+    }
+
+    /**
+     * Record that a thread slept on a condition variable for
+     * <i>sleepTicks</i>, up to when it held the lock again.
+     */
+    void slept(long sleepTicks) {
+        sleeps++;
+        totalSleep += sleepTicks;
+        if (sleepTicks > maxSleep)
+            maxSleep = sleepTicks;
+    }
+
+    /**
+     * Record that a lock was released after being held for
+     * <i>holdTicks</i>.
+     */
+    void released(long holdTicks) {
+        totalHold += holdTicks;
+        if (holdTicks > maxHold)
+            maxHold = holdTicks;
+    }
+
+    /**
+     * Add to the wait ticks of a thread. Only the few threads that have
+     * waited longest are kept: a thread that is not yet tracked replaces the
+     * one that has waited least, inheriting its count, which can only
+     * overestimate how long the newcomer waited.
+     */
+    private void recordWaiter(KThread thread, long waitTicks) {
+        int least = 0;
+        for (int i = 0; i < numTopWaiters; i++) {
+            if (waiters[i] == thread) {
+                waiterTicks[i] += waitTicks;
+                return;
+            }
+            if (waiters[i] == null) {
+                waiters[i] = thread;
+                waiterTicks[i] = waitTicks;
+                return;
+            }
+            if (waiterTicks[i] < waiterTicks[least])
+                least = i;
+        }
+
+        waiters[least] = thread;
+        waiterTicks[least] += waitTicks;
+    }
+
+    /**
+     * Print the profiles of every object that was acquired, the ones with
+     * the most wait ticks first.
+     */
+    public static void print() {
+        ArrayList<LockProfile> all;
+        synchronized (profiles) {
+            all = new ArrayList<LockProfile>(profiles.values());
+        }
+
+        Collections.sort(all, new Comparator<LockProfile>() {
+            public int compare(LockProfile p1, LockProfile p2) {
+                if (p1.totalWait != p2.totalWait)
+                    return Long.compare(p2.totalWait, p1.totalWait);
+                else
+                    return Long.compare(p2.acquisitions, p1.acquisitions);
+            }
+        });
+
+        System.out.println("Lock contention (ticks):");
+        System.out.println(String.format(
+                "  %-40s %9s %9s %10s %8s %10s %8s",
+                "object", "acquired", "contended", "wait", "max wait",
+                "hold", "max hold"));
+
+        for (LockProfile profile : all) {
+            if (profile.acquisitions == 0)
+                continue;
+
+            System.out.println(String.format(
+                    "  %-40s %9d %9d %10d %8d %10d %8d",
+                    profile.kind + " " + profile.name, profile.acquisitions,
+                    profile.contentions, profile.totalWait, profile.maxWait,
+                    profile.totalHold, profile.maxHold));
+            if (profile.contentions == 0)
+                continue;
+
+            StringBuffer top = new StringBuffer("    top waiters:");
+            boolean[] printed = new boolean[numTopWaiters];
+            for (int n = 0; n < numTopWaiters; n++) {
+                int most = -1;
+                for (int i = 0; i < numTopWaiters; i++) {
+                    if (profile.waiters[i] != null && !printed[i] && (most == -1
+                            || profile.waiterTicks[i] > profile.waiterTicks[most]))
+                        most = i;
+                }
+                if (most == -1)
+                    break;
+
+                printed[most] = true;
+                top.append(" " + profile.waiters[most] + " "
+                        + profile.waiterTicks[most]);
+            }
+            System.out.println(top);
+        }
+
+        boolean anySleeps = false;
+        for (LockProfile profile : all)
+            anySleeps |= (profile.sleeps > 0);
+        if (!anySleeps)
+            return;
+
+        Collections.sort(all, new Comparator<LockProfile>() {
+            public int compare(LockProfile p1, LockProfile p2) {
+                return Long.compare(p2.totalSleep, p1.totalSleep);
+            }
+        });
+
+        System.out.println("Condition sleeps (ticks):");
+        System.out.println(String.format("  %-40s %9s %10s %8s",
+                "object", "sleeps", "slept", "max"));
+
+        for (LockProfile profile : all) {
+            if (profile.sleeps == 0)
+                continue;
+
+            System.out.println(String.format("  %-40s %9d %10d %8d",
+                    profile.kind + " " + profile.name, profile.sleeps,
+                    profile.totalSleep, profile.maxSleep));
+        }
+    }
+
+    /**
+     * Return the number of times the objects were acquired.
+     *
+     * @return the number of acquisitions.
+     */
+    public long getAcquisitions() {
+        return acquisitions;
+    }
+
+    /**
+     * Return the number of acquisitions that had to wait.
+     *
+     * @return the number of contended acquisitions.
+     */
+    public long getContentions() {
+        return contentions;
+    }
+
+    /**
+     * Return the total ticks spent waiting to acquire the objects.
+     *
+     * @return the total wait ticks.
+     */
+    public long getTotalWait() {
+        return totalWait;
+    }
+
+    /**
+     * Return the total ticks the locks were held.
+     *
+     * @return the total hold ticks.
+     */
+    public long getTotalHold() {
+        return totalHold;
+    }
+
+    /**
+     * Return the number of times threads slept on the condition variables.
+     *
+     * @return the number of sleeps.
+     */
+    public long getSleeps() {
+        return sleeps;
+    }
+
+    /**
+     * Return the total ticks threads slept on the condition variables.
+     *
+     * @return the total sleep ticks.
+     */
+    public long getTotalSleep() {
+        return totalSleep;
+    }
+
+    private String kind, name;
+
+    private long acquisitions = 0, contentions = 0;
+    private long totalWait = 0, maxWait = 0;
+    private long totalHold = 0, maxHold = 0;
+    private long sleeps = 0, totalSleep = 0, maxSleep = 0;
+
+    private static final int numTopWaiters = 3;
+    private KThread[] waiters = new KThread[numTopWaiters];
+    private long[] waiterTicks = new long[numTopWaiters];
+
+    private static Boolean enabled = null;
+    private static final HashMap<String, LockProfile> profiles =
+            new HashMap<String, LockProfile>();
+}
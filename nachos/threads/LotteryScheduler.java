@@ -4,10 +4,7 @@ import nachos.machine.*;
 import nachos.threads.PriorityScheduler.PriorityQueue;
 import nachos.threads.PriorityScheduler.ThreadState;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Random;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -58,45 +55,180 @@ public class LotteryScheduler extends PriorityScheduler {
         return new LotteryQueue(transferPriority);
     }
 
+    /**
+     * Set the number of tickets of a thread. Unlike priorities, tickets are
+     * not limited to <tt>priorityMaximum</tt>, so threads can be given
+     * shares in any proportion.
+     */
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+                priority <= ticketsMaximum);
+
+        getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        boolean changed = (priority < ticketsMaximum);
+        if (changed)
+            setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        boolean changed = (priority > priorityMinimum);
+        if (changed)
+            setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    /**
+     * The maximum number of tickets a thread can hold, including donated
+     * tickets.
+     */
+    public static final int ticketsMaximum = Integer.MAX_VALUE;
+
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by Lottery.
+     *
+     * <p>
+     * Each waiting thread occupies a slot, and the tickets of the slots are
+     * kept in a Fenwick tree, so adding a thread, removing one, changing its
+     * tickets and holding the lottery all take O(log n) time.
      */
     protected class LotteryQueue extends PriorityScheduler.PriorityQueue {
         LotteryQueue(boolean transferPriority) {
             super(transferPriority);
         }
 
+        protected void enqueue(PriorityScheduler.ThreadState state) {
+            if (numFree == 0)
+                grow();
+
+            int slot = free[--numFree];
+            owners[slot] = (ThreadState) state;
+            ((ThreadState) state).slot = slot;
+            numWaiting++;
+
+            add(slot, state.getEffectivePriority());
+        }
+
+        protected void dequeue(PriorityScheduler.ThreadState state) {
+            int slot = ((ThreadState) state).slot;
+            Lib.assertTrue(owners[slot] == state);
+
+            add(slot, -state.getEffectivePriority());
+
+            owners[slot] = null;
+            free[numFree++] = slot;
+            numWaiting--;
+        }
+
+        protected void requeue(PriorityScheduler.ThreadState state, int oldPriority) {
+            add(((ThreadState) state).slot,
+                    (long) state.getEffectivePriority() - oldPriority);
+        }
+
+        /**
+         * Waiting threads donate all of their tickets to the thread holding
+         * this queue.
+         */
+        protected int donation() {
+            return (int) Math.min(totalTickets, ticketsMaximum);
+        }
 
         protected ThreadState pickNextThread() {
-            if (waitingList.isEmpty())
+            if (numWaiting == 0)
                 return null;
 
-            int totalLottery = 0;//用于统计总彩票数量
-
-            for (KThread th : waitingList) {
-                totalLottery += getThreadState(th).getEffectivePriority();//统计总彩票数量
+            if (totalTickets == 0) {
+                // nobody holds a ticket, so nobody is preferred
+                for (ThreadState owner : owners) {
+                    if (owner != null)
+                        return owner;
+                }
             }
 
-            Random random = new Random();
-            int randomLottery = random.nextInt(totalLottery);//抽取一张彩票
-//            System.out.println();
-//            System.out.println("the chosen lottery is "+ randomLottery);
-            int countLottery = -1;//因为彩票是从0开始抽取的
-            KThread nextThread = null;//需要选出的下一个线程
-            for (KThread th : waitingList) {//遍历队列，找出被抽中的线程
-                countLottery += getThreadState(th).getEffectivePriority();
-//                System.out.println("scan "+th.getName());
-                if (countLottery >= randomLottery) {//线程被抽中
-                    nextThread = th;
-//                    System.out.println("the chosen thread is "+nextThread.getName()+" which holds "+getThreadState(nextThread).getEffectivePriority()+" lotteries");
-                    break;
+            long winner;//抽中的彩票
+            if (totalTickets <= Integer.MAX_VALUE)
+                winner = Lib.random((int) totalTickets);
+            else
+                winner = (long) (Lib.random() * totalTickets);
+
+            // descend the tree to the slot whose tickets include the winner
+            int slot = 0;
+            for (int step = owners.length; step > 0; step /= 2) {
+                if (slot + step <= owners.length && tree[slot + step] <= winner) {
+                    slot += step;
+                    winner -= tree[slot];
                 }
             }
 
-            return getThreadState(nextThread);
+            Lib.assertTrue(owners[slot] != null);
+            return owners[slot];
+        }
+
+        /**
+         * Add <i>tickets</i> to the count of a slot.
+         */
+        private void add(int slot, long tickets) {
+            totalTickets += tickets;
+
+            for (int i = slot + 1; i <= owners.length; i += i & -i)
+                tree[i] += tickets;
         }
 
+        private void grow() {
+            int capacity = owners.length * 2;
 
+            owners = Arrays.copyOf(owners, capacity);
+            free = Arrays.copyOf(free, capacity);
+            for (int i = capacity - 1; i >= capacity / 2; i--)
+                free[numFree++] = i;
+
+            // every slot was in use; rebuild the tree over the larger range
+            tree = new long[capacity + 1];
+            for (int i = 1; i <= capacity; i++) {
+                if (owners[i - 1] != null)
+                    tree[i] += owners[i - 1].getEffectivePriority();
+                int parent = i + (i & -i);
+                if (parent <= capacity)
+                    tree[parent] += tree[i];
+            }
+        }
+
+        /**
+         * The thread in each slot, or <tt>null</tt> if the slot is free. The
+         * number of slots is always a power of two.
+         */
+        private ThreadState[] owners = new ThreadState[4];
+        /**
+         * The Fenwick tree over the tickets of the slots; <tt>tree[i]</tt>
+         * covers the slots ending at <i>i - 1</i>.
+         */
+        private long[] tree = new long[owners.length + 1];
+        private int[] free = {3, 2, 1, 0};
+        private int numFree = owners.length;
+        private int numWaiting = 0;
+        /**
+         * The sum of the effective tickets of the waiting threads.
+         */
+        protected long totalTickets;
     }
 
     /**
@@ -112,22 +244,32 @@ public class LotteryScheduler extends PriorityScheduler {
         }
 
 
-        public void updateEffectivePriority(PriorityQueue blockedQueue)  {
-            PriorityQueue transferQueue=blockedQueue;
-            while(transferQueue!=null&&transferQueue.resHolder!=null) {
-                ThreadState tempState=getThreadState(transferQueue.resHolder);
-                int total = tempState.effectivePriority;
-                total += effectivePriority;
-                if(total>priorityMaximum) {//该线程持有的彩票数量不能超过最大彩票数
-                    total = priorityMaximum;
+        /**
+         * Donated tickets add to the thread's own.
+         */
+        protected int computeEffectivePriority() {
+            return (int) Math.min(ticketsMaximum, priority + donatedTickets);
+        }
 
-                }
-                tempState.effectivePriority = total;
-                transferQueue=tempState.blockedQueue;
-            }
+        protected void addDonation(int donation) {
+            donatedTickets += donation;
+        }
 
+        protected void removeDonation(int donation) {
+            donatedTickets -= donation;
+            Lib.assertTrue(donatedTickets >= 0);
         }
+
+        /**
+         * The sum of the tickets donated by the queues this thread holds.
+         */
+        private long donatedTickets;
+        /**
+         * The slot this thread occupies in the queue it is waiting in.
+         */
+        private int slot;
     }
+
     public static void selfTest() {
         LotteryScheduler lsc = new LotteryScheduler();
         boolean status = Machine.interrupt().disable();
@@ -157,5 +299,53 @@ public class LotteryScheduler extends PriorityScheduler {
 //        a.join();
         c.join();
         Machine.interrupt().restore(status);
+
+        drawTest();
+    }
+
+    /**
+     * Hold many lotteries between a thread with 1000 tickets and a thread with
+     * one, then time lotteries among thousands of waiting threads. The threads
+     * are never forked; only their scheduling state is exercised.
+     */
+    private static void drawTest() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        LotteryScheduler scheduler = new LotteryScheduler();
+        LotteryQueue queue = scheduler.new LotteryQueue(false);
+
+        KThread rich = new KThread().setName("rich");
+        KThread poor = new KThread().setName("poor");
+        scheduler.setPriority(rich, 1000);
+        scheduler.setPriority(poor, 1);
+        queue.waitForAccess(rich);
+        queue.waitForAccess(poor);
+
+        int draws = 100000, poorWins = 0;
+        for (int i = 0; i < draws; i++) {
+            if (queue.pickNextThread().thread == poor)
+                poorWins++;
+        }
+        System.out.println("LotteryScheduler: 1000:1 tickets, " + poorWins
+                + " of " + draws + " draws won by the single ticket");
+        Lib.assertTrue(poorWins > 50 && poorWins < 200);
+
+        int waiters = 10000;
+        queue = scheduler.new LotteryQueue(false);
+        for (int i = 0; i < waiters; i++) {
+            KThread thread = new KThread().setName("waiter " + i);
+            scheduler.setPriority(thread, 1 + Lib.random(1000));
+            queue.waitForAccess(thread);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < draws; i++) {
+            // the winner takes its turn and goes back to waiting
+            queue.waitForAccess(queue.nextThread());
+        }
+        System.out.println("LotteryScheduler: " + waiters + " waiters, "
+                + (System.nanoTime() - start) / draws + " ns/draw");
+
+        Machine.interrupt().restore(intStatus);
     }
 }
\ No newline at end of file
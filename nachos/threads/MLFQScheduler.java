@@ -0,0 +1,387 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * A multi-level feedback queue scheduler. Every thread is at one of several
+ * levels, and the next thread to be dequeued is always the thread that has
+ * waited longest at the highest level (level 0). Threads are not given
+ * priorities; their level follows from how they behave:
+ *
+ * <ul>
+ * <li>A thread starts at the highest level.
+ * <li>A thread that gives up the processor after using its whole quantum at a
+ * level moves down one level. The quantum doubles at each level, and a thread
+ * that the timer preempts before its quantum is used keeps its place at the
+ * head of its level. A thread that yields by itself goes to the back.
+ * <li>Time a thread runs before it blocks counts toward its quantum, and a
+ * thread woken by another thread, for example when a lock is handed to it,
+ * keeps its level.
+ * <li>A thread that blocks waiting for I/O, such as console input, moves back
+ * to the highest level when it is woken. <tt>SynchConsole</tt> marks its waits
+ * with <tt>Scheduler.setWaitingForIO()</tt>.
+ * <li>Every <tt>MLFQScheduler.boostPeriod</tt> ticks, every thread moves back
+ * to the highest level, so that threads at low levels cannot starve.
+ * </ul>
+ *
+ * <p>
+ * Interactive threads therefore stay at high levels and are run soon after
+ * they wake, while processor-bound threads sink and share what is left.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+        numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+        boostPeriod = Config.getInteger("MLFQScheduler.boostPeriod",
+                50 * Stats.TimerTicks);
+
+        Lib.assertTrue(numLevels >= 1 && boostPeriod > 0);
+    }
+
+    /**
+     * Allocate a new multi-level feedback thread queue.
+     *
+     * @param transferPriority ignored. Levels are not donated.
+     * @return a new multi-level feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new FeedbackQueue();
+    }
+
+    /**
+     * Return the level of a thread, between 0 (the highest) and
+     * <tt>MLFQScheduler.levels - 1</tt>.
+     *
+     * @param thread the thread whose level to return.
+     * @return the level of the thread.
+     */
+    public int getLevel(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        ThreadState state = getThreadState(thread);
+        state.checkEpoch();
+        return state.level;
+    }
+
+    /**
+     * Mark whether the current thread is waiting for I/O. A thread woken while
+     * it is marked moves back to the highest level.
+     *
+     * @param waiting <tt>true</tt> before the thread waits for I/O,
+     *                <tt>false</tt> once the wait is over.
+     */
+    public void setWaitingForIO(boolean waiting) {
+        boolean intStatus = Machine.interrupt().disable();
+        getThreadState(KThread.currentThread()).waitingForIO = waiting;
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Note that the current thread is being preempted, so that it keeps its
+     * place at the head of its level if it has quantum left.
+     */
+    public void timeSliceExpired() {
+        boolean intStatus = Machine.interrupt().disable();
+        getThreadState(KThread.currentThread()).preempted = true;
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of ticks a thread may use at a level before it is
+     * moved down.
+     *
+     * @param level the level.
+     * @return the quantum at that level.
+     */
+    protected long quantum(int level) {
+        return (long) Stats.TimerTicks << level;
+    }
+
+    /**
+     * Return the number of boost periods that have started since the machine
+     * started.
+     */
+    private long currentEpoch() {
+        return Machine.timer().getTime() / boostPeriod;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param thread the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new ThreadState();
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    private class FeedbackQueue extends ThreadQueue {
+        FeedbackQueue() {
+            for (int i = 0; i < numLevels; i++)
+                levels.add(new ArrayDeque<KThread>());
+        }
+
+        /**
+         * Add a thread to the queue. The thread is first charged for the time
+         * it has run since it was last charged, whether it is yielding,
+         * blocking, or being woken after it blocked. A thread woken while
+         * waiting for I/O moves to the highest level.
+         *
+         * @param thread the thread to add.
+         */
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            checkEpoch();
+
+            ThreadState state = getThreadState(thread);
+            state.checkEpoch();
+            boolean demoted = state.charge(thread);
+
+            if (thread != KThread.currentThread()) {
+                if (state.waitingForIO) {
+                    state.level = 0;
+                    state.used = 0;
+                }
+                levels.get(state.level).addLast(thread);
+                return;
+            }
+
+            boolean preempted = state.preempted;
+            state.preempted = false;
+            if (thread.isReady() && preempted && !demoted) {
+                // preempted early, so it goes on with its quantum
+                levels.get(state.level).addFirst(thread);
+                return;
+            }
+
+            levels.get(state.level).addLast(thread);
+        }
+
+        /**
+         * Remove the thread that has waited longest at the highest level.
+         *
+         * @return the next thread, or <tt>null</tt> if the queue is empty.
+         */
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            checkEpoch();
+
+            for (ArrayDeque<KThread> level : levels) {
+                if (!level.isEmpty()) {
+                    return level.removeFirst();
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * The specified thread has received exclusive access, without using
+         * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+         * threads are waiting for access.
+         */
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (ArrayDeque<KThread> level : levels)
+                Lib.assertTrue(level.isEmpty());
+        }
+
+        /**
+         * Print out the contents of the queue, one level at a time.
+         */
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < numLevels; i++) {
+                System.out.print("[" + i + "]");
+                for (KThread thread : levels.get(i))
+                    System.out.print(" " + thread);
+                System.out.print(" ");
+            }
+        }
+
+        /**
+         * If a new boost period has started, move every waiting thread to the
+         * highest level, keeping higher levels ahead of lower ones.
+         */
+        private void checkEpoch() {
+            long current = currentEpoch();
+            if (epoch == current)
+                return;
+
+            epoch = current;
+
+            ArrayDeque<KThread> top = levels.get(0);
+            for (int i = 1; i < numLevels; i++) {
+                ArrayDeque<KThread> level = levels.get(i);
+                while (!level.isEmpty())
+                    top.addLast(level.removeFirst());
+            }
+
+            for (KThread thread : top)
+                getThreadState(thread).checkEpoch();
+        }
+
+        private ArrayList<ArrayDeque<KThread>> levels =
+                new ArrayList<ArrayDeque<KThread>>();
+        private long epoch = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     */
+    protected class ThreadState {
+        /**
+         * If a new boost period has started since this thread was last
+         * scheduled, move it to the highest level.
+         */
+        void checkEpoch() {
+            long current = currentEpoch();
+            if (epoch != current) {
+                epoch = current;
+                level = 0;
+                used = 0;
+            }
+        }
+
+        /**
+         * Add the ticks the thread has run for since it was last charged to
+         * <tt>used</tt>, and move it down a level if its quantum is used up.
+         *
+         * @return <tt>true</tt> if the thread was moved down.
+         */
+        boolean charge(KThread thread) {
+            long cpuTicks = thread.getStats().getCpuTicks();
+            used += cpuTicks - charged;
+            charged = cpuTicks;
+
+            if (used < quantum(level))
+                return false;
+
+            if (level < numLevels - 1)
+                level++;
+            used = 0;
+            return true;
+        }
+
+        /** The level of the thread. */
+        int level = 0;
+        /** The ticks the thread has run for at its level. */
+        long used = 0;
+        /** The processor time of the thread when it was last charged. */
+        long charged = 0;
+        /** The boost period in which the level was last checked. */
+        long epoch = 0;
+        /** Whether the thread is waiting for I/O. */
+        boolean waitingForIO = false;
+        /** Whether the thread is yielding because the timer preempted it. */
+        boolean preempted = false;
+    }
+
+    /**
+     * Check that a thread that uses up its quantum moves down, that a thread
+     * yielding by itself lets another thread at its level run, that a thread
+     * keeps its level when another thread wakes it but moves back up after
+     * waiting for I/O, and that every thread moves back up once a boost
+     * period passes. The threads must really run, so this does nothing
+     * unless the kernel itself uses a multi-level feedback queue scheduler.
+     */
+    public static void selfTest() {
+        if (!(ThreadedKernel.scheduler instanceof MLFQScheduler))
+            return;
+
+        final MLFQScheduler scheduler = (MLFQScheduler) ThreadedKernel.scheduler;
+
+        KThread test = new KThread(new Runnable() {
+            public void run() {
+                // start just after a boost, so that none happens until the last check
+                long time = Machine.timer().getTime();
+                ThreadedKernel.alarm.waitUntil(scheduler.boostPeriod
+                        - time % scheduler.boostPeriod);
+                Lib.assertTrue(currentLevel(scheduler) == 0);
+
+                spin(2 * scheduler.quantum(0));
+                Lib.assertTrue(currentLevel(scheduler) > 0);
+
+                // woken by another thread: keeps its level
+                final Semaphore wake = new Semaphore(0);
+                new KThread(new Runnable() {
+                    public void run() {
+                        wake.V();
+                    }
+                }).setName("MLFQ waker").fork();
+                wake.P();
+                Lib.assertTrue(currentLevel(scheduler) > 0);
+
+                // woken after waiting for I/O: moves back up
+                scheduler.setWaitingForIO(true);
+                ThreadedKernel.alarm.waitUntil(1);
+                scheduler.setWaitingForIO(false);
+                Lib.assertTrue(currentLevel(scheduler) == 0);
+
+                // a boost period passes while it waits for no I/O: moves back up
+                spin(2 * scheduler.quantum(0));
+                Lib.assertTrue(currentLevel(scheduler) > 0);
+                ThreadedKernel.alarm.waitUntil(scheduler.boostPeriod);
+                Lib.assertTrue(currentLevel(scheduler) == 0);
+            }
+        }).setName("MLFQ test");
+        test.fork();
+        test.join();
+
+        // threads at one level that yield by themselves take turns
+        final StringBuffer order = new StringBuffer();
+        KThread[] threads = new KThread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final char name = (char) ('a' + i);
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 3; j++) {
+                        order.append(name);
+                        KThread.yield();
+                    }
+                }
+            }).setName("MLFQ yield " + name);
+            threads[i].fork();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        System.out.println("MLFQScheduler: yield order " + order);
+        for (int i = 1; i < order.length(); i++)
+            Lib.assertTrue(order.charAt(i) != order.charAt(i - 1));
+    }
+
+    private static int currentLevel(MLFQScheduler scheduler) {
+        boolean intStatus = Machine.interrupt().disable();
+        int level = scheduler.getLevel(KThread.currentThread());
+        Machine.interrupt().restore(intStatus);
+        return level;
+    }
+
+    /**
+     * Run for at least the specified number of ticks of processor time.
+     */
+    private static void spin(long ticks) {
+        ThreadStats stats = KThread.currentThread().getStats();
+        long start = stats.getCpuTicks();
+        while (stats.getCpuTicks() - start < ticks) {
+            Machine.interrupt().disable();
+            Machine.interrupt().enable();
+        }
+    }
+
+    private int numLevels;
+    private long boostPeriod;
+}
@@ -3,8 +3,8 @@ package nachos.threads;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 
-import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
 
 /**
@@ -97,6 +97,149 @@ public class PriorityScheduler extends Scheduler {
         return true;
     }
 
+    /**
+     * Check the effective priorities kept up by donation against a
+     * recomputation from scratch while threads randomly wait, acquire and
+     * change priority, then time priority changes at the far end of a deep
+     * chain of locks and among many waiters on one lock. The threads are
+     * never forked; only their scheduling state is exercised.
+     */
+    public static void selfTest() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        PriorityScheduler scheduler = new PriorityScheduler();
+        Random random = new Random(0);
+
+        ThreadState[] states = new ThreadState[64];
+        for (int i = 0; i < states.length; i++)
+            states[i] = scheduler.getThreadState(new KThread().setName("donor " + i));
+
+        PriorityQueue[] queues = new PriorityQueue[16];
+        for (int i = 0; i < queues.length; i++)
+            queues[i] = scheduler.new PriorityQueue(i % 4 != 0);
+
+        for (int op = 0; op < 200000; op++) {
+            ThreadState state = states[random.nextInt(states.length)];
+            PriorityQueue queue = queues[random.nextInt(queues.length)];
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    state.setPriority(random.nextInt(priorityMaximum + 1));
+                    break;
+                case 1:
+                    // a waiting thread is blocked, and must not end up
+                    // waiting on itself through a chain of locks
+                    if (state.queuedOn != null || dependsOn(queue, state))
+                        break;
+                    if (queue.resHolder == null)
+                        state.acquire(queue);
+                    else
+                        state.waitForAccess(queue);
+                    break;
+                case 2:
+                    queue.nextThread();
+                    break;
+            }
+
+            checkPriorities(states, queues);
+        }
+
+        for (PriorityQueue queue : queues) {
+            while (queue.nextThread() != null)
+                ;
+        }
+        for (ThreadState state : states)
+            Lib.assertTrue(state.accessedSet.isEmpty() && state.donationLevels == 0);
+
+        // a chain of depth threads, each holding one lock and waiting on the
+        // next, with many low-priority threads waiting on the first lock
+        int depth = 1000, waiters = 1000, changes = 100000;
+        ThreadState[] chain = new ThreadState[depth];
+        PriorityQueue[] locks = new PriorityQueue[depth];
+        for (int i = 0; i < depth; i++) {
+            chain[i] = scheduler.getThreadState(new KThread().setName("chain " + i));
+            locks[i] = scheduler.new PriorityQueue(true);
+            chain[i].acquire(locks[i]);
+        }
+        for (int i = 0; i < depth - 1; i++)
+            chain[i].waitForAccess(locks[i + 1]);
+
+        ThreadState[] crowd = new ThreadState[waiters];
+        for (int i = 0; i < waiters; i++) {
+            crowd[i] = scheduler.getThreadState(new KThread().setName("waiter " + i));
+            crowd[i].setPriority(priorityMinimum);
+            crowd[i].waitForAccess(locks[0]);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < changes; i++) {
+            // every change reaches the far end of the chain
+            crowd[0].setPriority((i % 2 == 0) ? priorityMaximum : priorityMinimum);
+        }
+        long chainTime = (System.nanoTime() - start) / changes;
+        Lib.assertTrue(chain[depth - 1].getEffectivePriority() == priorityDefault);
+
+        crowd[0].setPriority(priorityMaximum);
+        start = System.nanoTime();
+        for (int i = 0; i < changes; i++) {
+            // the first lock still donates the maximum, so nothing propagates
+            crowd[1 + i % (waiters - 1)].setPriority(
+                    1 + random.nextInt(priorityMaximum));
+        }
+        long crowdTime = (System.nanoTime() - start) / changes;
+        Lib.assertTrue(chain[depth - 1].getEffectivePriority() == priorityMaximum);
+
+        System.out.println("PriorityScheduler: " + depth + "-deep chain "
+                + chainTime + " ns/change, " + waiters + " waiters "
+                + crowdTime + " ns/change");
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test whether a thread waiting on <tt>queue</tt> would, through the
+     * chain of threads holding locks and the locks they wait on, end up
+     * waiting on itself.
+     */
+    private static boolean dependsOn(PriorityQueue queue, ThreadState state) {
+        while (queue != null && queue.resHolder != null) {
+            ThreadState holder = (ThreadState) queue.resHolder.schedulingState;
+            if (holder == state)
+                return true;
+            queue = holder.queuedOn;
+        }
+        return false;
+    }
+
+    private static void checkPriorities(ThreadState[] states,
+                                        PriorityQueue[] queues) {
+        for (ThreadState state : states)
+            Lib.assertTrue(state.getEffectivePriority() == expectedPriority(state, states));
+
+        for (PriorityQueue queue : queues) {
+            ThreadState first = null;
+            for (ThreadState state : states) {
+                if (state.queuedOn == queue && (first == null
+                        || state.effectivePriority > first.effectivePriority
+                        || (state.effectivePriority == first.effectivePriority
+                        && state.arrival < first.arrival)))
+                    first = state;
+            }
+            Lib.assertTrue(queue.pickNextThread() == first);
+        }
+    }
+
+    private static int expectedPriority(ThreadState state, ThreadState[] states) {
+        int priority = state.priority;
+        for (ThreadState waiter : states) {
+            PriorityQueue queue = waiter.queuedOn;
+            if (queue != null && queue.transferPriority
+                    && queue.resHolder == state.thread)
+                priority = Math.max(priority, expectedPriority(waiter, states));
+        }
+        return priority;
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -145,13 +288,7 @@ public class PriorityScheduler extends Scheduler {
             Lib.assertTrue(Machine.interrupt().disabled());
             // implement me
             //处理旧线程的ThreadState的更新
-            KThread oldThread = resHolder;
-            if (oldThread != null) {
-                ThreadState oldState = getThreadState(oldThread);
-                oldState.accessedSet.remove(this);
-                if (oldState.accessedSet.size() == 0)
-                    oldState.effectivePriority = oldState.priority;
-            }
+            release();
 
             //选出并处理新线程
             ThreadState nextThreadState = pickNextThread();
@@ -177,23 +314,137 @@ public class PriorityScheduler extends Scheduler {
          * return.
          */
         protected ThreadState pickNextThread() {
-            // implement me
-            int maxPriority = 0;
-            for (int i = 0; i < waitingList.size(); i++) {
-                int tempPriority = getThreadState(waitingList.get(i)).getEffectivePriority();
-                if (tempPriority > maxPriority)
-                    maxPriority = tempPriority;
-            }
-            KThread nextThread = null;
-            for (int i = 0; i < waitingList.size(); i++) {
-                KThread tempThread = waitingList.get(i);
-                if (getThreadState(tempThread).getEffectivePriority() == maxPriority) {
-                    nextThread = tempThread;
-                    break;
-                }
+            if (nonEmptyLevels == 0)
+                return null;
+
+            // the head of the highest non-empty level has waited longest
+            int level = 31 - Integer.numberOfLeadingZeros(nonEmptyLevels);
+            return heads[level];
+        }
+
+        /**
+         * Return the priority this queue donates to the thread holding it: the
+         * highest effective priority of any waiting thread.
+         *
+         * @return the donated priority.
+         */
+        protected int donation() {
+            if (nonEmptyLevels == 0)
+                return priorityMinimum;
+
+            return 31 - Integer.numberOfLeadingZeros(nonEmptyLevels);
+        }
+
+        /**
+         * Take away the donation of this queue from the thread holding it, if
+         * any, and record that no thread holds it.
+         */
+        protected void release() {
+            if (resHolder == null)
+                return;
+
+            ThreadState holder = getThreadState(resHolder);
+            resHolder = null;
+
+            if (transferPriority) {
+                Lib.assertTrue(holder.accessedSet.remove(this));
+                holder.removeDonation(donated);
+                holder.updateEffectivePriority();
             }
-            if (nextThread == null) return null;
-            else return getThreadState(nextThread);
+        }
+
+        /**
+         * Recompute the donation of this queue after its waiters changed, and
+         * pass any change on to the thread holding it.
+         *
+         * @return the state of the holder whose donations changed, or
+         * <tt>null</tt> if nothing changed.
+         */
+        protected ThreadState passDonation() {
+            if (!transferPriority || resHolder == null)
+                return null;
+
+            int donation = donation();
+            if (donation == donated)
+                return null;
+
+            ThreadState holder = getThreadState(resHolder);
+            holder.removeDonation(donated);
+            holder.addDonation(donation);
+            donated = donation;
+
+            return holder;
+        }
+
+        /**
+         * Add a thread that has started waiting to the tail of the level for
+         * its effective priority.
+         *
+         * @param state the state of the waiting thread.
+         */
+        protected void enqueue(ThreadState state) {
+            state.arrival = numArrivals++;
+            link(state, state.getEffectivePriority());
+        }
+
+        /**
+         * Remove a thread that is no longer waiting.
+         *
+         * @param state the state of the thread.
+         */
+        protected void dequeue(ThreadState state) {
+            unlink(state, state.getEffectivePriority());
+        }
+
+        /**
+         * Move a waiting thread whose effective priority has changed to the
+         * level for its new effective priority.
+         *
+         * @param state       the state of the waiting thread.
+         * @param oldPriority the effective priority it was queued at.
+         */
+        protected void requeue(ThreadState state, int oldPriority) {
+            unlink(state, oldPriority);
+            link(state, state.getEffectivePriority());
+        }
+
+        private void link(ThreadState state, int level) {
+            // levels are kept in arrival order; only a thread whose priority
+            // changed while it waited can belong anywhere but the tail
+            ThreadState prev = tails[level];
+            while (prev != null && prev.arrival > state.arrival)
+                prev = prev.prevWaiter;
+
+            ThreadState next = (prev == null) ? heads[level] : prev.nextWaiter;
+
+            state.prevWaiter = prev;
+            state.nextWaiter = next;
+            if (prev == null)
+                heads[level] = state;
+            else
+                prev.nextWaiter = state;
+            if (next == null)
+                tails[level] = state;
+            else
+                next.prevWaiter = state;
+
+            nonEmptyLevels |= 1 << level;
+        }
+
+        private void unlink(ThreadState state, int level) {
+            if (state.prevWaiter == null)
+                heads[level] = state.nextWaiter;
+            else
+                state.prevWaiter.nextWaiter = state.nextWaiter;
+            if (state.nextWaiter == null)
+                tails[level] = state.prevWaiter;
+            else
+                state.nextWaiter.prevWaiter = state.prevWaiter;
+
+            state.prevWaiter = state.nextWaiter = null;
+
+            if (heads[level] == null)
+                nonEmptyLevels &= ~(1 << level);
         }
 
         public void print() {
@@ -207,8 +458,23 @@ public class PriorityScheduler extends Scheduler {
          */
         public boolean transferPriority;
         public KThread resHolder;//表明该队列正在等待的线程
-        public ArrayList<KThread> waitingList = new ArrayList<>();//该等待队列的内部容器
-
+        /**
+         * The first and last waiting thread at each effective priority, linked
+         * through <tt>ThreadState.nextWaiter</tt> in the order they arrived.
+         */
+        private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+        private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+        /**
+         * Bit <i>p</i> is set if any thread is waiting at effective priority
+         * <i>p</i>.
+         */
+        private int nonEmptyLevels = 0;
+        private long numArrivals = 0;
+        /**
+         * The donation last passed to <tt>resHolder</tt>, if this queue
+         * transfers priority.
+         */
+        protected int donated;
 
     }
 
@@ -251,20 +517,66 @@ public class PriorityScheduler extends Scheduler {
             return effectivePriority;
         }
 
-        //更新优先级
-        public void updateEffectivePriority(PriorityQueue blockedQueue) {
-            PriorityQueue transferQueue = blockedQueue;
-            /* 进行优先级更新，使用while是因为要处理优先级传递.
-             * 若transferQueue为null意味着没有需要传递优先级的线程(遍历到的线程并不在某个队列中等待).
-             * 若transferQueue.resHolder意味着没有线程在持有资源,这是为了防止用户调用方法不规范导致报错->
-             * (队列中有线程等待但是却没有持有资源的线程,这种情况只可能发生在用户在直接获取资源时没有按照规定调用acquire方法)*/
-            while (transferQueue != null && transferQueue.resHolder != null) {
-                ThreadState tempState = getThreadState(transferQueue.resHolder);
-                //若占用了资源的线程的有效优先级小于或者等于加入队列的线程的有效优先级，那没有更新的必要(结束循环)
-                if (tempState.getEffectivePriority() < this.getEffectivePriority()) {
-                    tempState.effectivePriority = this.getEffectivePriority();
-                    transferQueue = tempState.blockedQueue;
-                } else transferQueue = null;
+        /**
+         * Return what the effective priority of the associated thread should
+         * be: its own priority, or the highest priority donated by a queue it
+         * holds, whichever is greater.
+         *
+         * @return the effective priority.
+         */
+        protected int computeEffectivePriority() {
+            if (donationLevels == 0)
+                return priority;
+
+            return Math.max(priority,
+                    31 - Integer.numberOfLeadingZeros(donationLevels));
+        }
+
+        /**
+         * Record a donation from a queue the associated thread holds.
+         *
+         * @param donation the donated priority.
+         */
+        protected void addDonation(int donation) {
+            donationCounts[donation]++;
+            donationLevels |= 1 << donation;
+        }
+
+        /**
+         * Forget a donation recorded by <tt>addDonation()</tt>.
+         *
+         * @param donation the donated priority.
+         */
+        protected void removeDonation(int donation) {
+            Lib.assertTrue(donationCounts[donation] > 0);
+
+            if (--donationCounts[donation] == 0)
+                donationLevels &= ~(1 << donation);
+        }
+
+        /**
+         * Bring the effective priority of the associated thread up to date,
+         * and propagate any change along the chain of queues it is waiting in
+         * and the threads holding them. The walk stops at the first thread
+         * whose effective priority is unchanged.
+         */
+        public void updateEffectivePriority() {
+            ThreadState state = this;
+
+            while (state != null) {
+                int oldPriority = state.effectivePriority;
+                int newPriority = state.computeEffectivePriority();
+                if (newPriority == oldPriority)
+                    return;
+
+                state.effectivePriority = newPriority;
+
+                PriorityQueue queue = state.queuedOn;
+                if (queue == null)
+                    return;
+
+                queue.requeue(state, oldPriority);
+                state = queue.passDonation();
             }
         }
 
@@ -280,8 +592,7 @@ public class PriorityScheduler extends Scheduler {
             this.priority = priority;
 
             // implement me
-            effectivePriority = Math.max(this.priority, this.effectivePriority);
-            updateEffectivePriority(blockedQueue);
+            updateEffectivePriority();
         }
 
 
@@ -298,10 +609,14 @@ public class PriorityScheduler extends Scheduler {
          */
         public void waitForAccess(PriorityQueue waitQueue) {
             // implement me
-            waitQueue.waitingList.add(thread);
+            Lib.assertTrue(queuedOn == null);
+            queuedOn = waitQueue;
+            waitQueue.enqueue(this);
             if (waitQueue.transferPriority) {
                 blockedQueue = waitQueue;
-                updateEffectivePriority(blockedQueue);
+                ThreadState holder = waitQueue.passDonation();
+                if (holder != null)
+                    holder.updateEffectivePriority();
             }
         }
 
@@ -318,12 +633,19 @@ public class PriorityScheduler extends Scheduler {
          */
         public void acquire(PriorityQueue waitQueue) {
             // implement me
-            if (!waitQueue.waitingList.isEmpty())
-                waitQueue.waitingList.remove(thread);
+            if (queuedOn == waitQueue) {
+                waitQueue.dequeue(this);
+                queuedOn = null;
+            }
+            waitQueue.release();
             waitQueue.resHolder = thread;
             if (waitQueue.transferPriority) {
                 accessedSet.add(waitQueue);
                 blockedQueue = null;
+
+                waitQueue.donated = waitQueue.donation();
+                addDonation(waitQueue.donated);
+                updateEffectivePriority();
             }
         }
 
@@ -348,6 +670,26 @@ public class PriorityScheduler extends Scheduler {
          * 记录当前线程正在哪个阻塞队列中等待
          */
         protected PriorityQueue blockedQueue;
-
+        /**
+         * The queue this thread is waiting in, whether or not it transfers
+         * priority, or <tt>null</tt> if it is not waiting.
+         */
+        protected PriorityQueue queuedOn;
+        /**
+         * The order in which this thread started waiting in
+         * <tt>queuedOn</tt>.
+         */
+        protected long arrival;
+        /**
+         * The neighbouring threads waiting at the same effective priority in
+         * <tt>queuedOn</tt>.
+         */
+        protected ThreadState prevWaiter, nextWaiter;
+        /**
+         * The number of held queues donating each priority, and a bitmap of
+         * the priorities with a non-zero count.
+         */
+        private int[] donationCounts = new int[priorityMaximum + 1];
+        private int donationLevels = 0;
     }
 }
@@ -154,4 +154,25 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Tell the scheduler whether the current thread is about to wait for I/O,
+     * such as console input, rather than for another thread. A scheduler may
+     * favor a thread woken from such a wait. The default implementation does
+     * nothing.
+     *
+     * @param	waiting	<tt>true</tt> before the thread waits for I/O,
+     *			<tt>false</tt> once the wait is over.
+     */
+    public void setWaitingForIO(boolean waiting) {
+    }
+
+    /**
+     * Tell the scheduler that the current thread is about to yield because
+     * the timer interrupted it, rather than by calling <tt>yield()</tt>
+     * itself. Called by <tt>Alarm</tt>. The default implementation does
+     * nothing.
+     */
+    public void timeSliceExpired() {
+    }
 }
@@ -28,7 +28,22 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, null);
+    }
+
+    /**
+     * Allocate a new semaphore with a name, which identifies it when
+     * contention is profiled.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name of the semaphore, or <tt>null</tt> to
+     *				name it by the method allocating it.
+     */
+    public Semaphore(int initialValue, String name) {
 	value = initialValue;
+
+	if (LockProfile.isEnabled())
+	    profile = LockProfile.forName("Semaphore", name);
     }
 
     /**
@@ -38,11 +53,18 @@ public class Semaphore {
 	boolean intStatus = Machine.interrupt().disable();
 
 	if (value == 0) {
+	    long start = (profile != null) ? Machine.timer().getTime() : 0;
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
+	    if (profile != null) {
+		profile.acquired(KThread.currentThread(), true,
+				 Machine.timer().getTime() - start);
+	    }
 	}
 	else {
 	    value--;
+	    if (profile != null)
+		profile.acquired(KThread.currentThread(), false, 0);
 	}
 
 	Machine.interrupt().restore(intStatus);
@@ -99,6 +121,7 @@ public class Semaphore {
     }
 
     private int value;
+    private LockProfile profile = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,462 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A scheduler that gives threads shares of access in proportion to their
+ * tickets, deterministically.
+ *
+ * <p>
+ * Each thread has a stride, inversely proportional to its tickets, and a pass.
+ * The next thread to be dequeued is always the waiting thread with the lowest
+ * pass (the one that has waited longest, among equal passes). Only the ready
+ * queue charges for access: a thread's pass is advanced by its stride each
+ * time it is dispatched, so over any interval a thread with twice the tickets
+ * of another runs twice as often, give or take one turn, with none of the
+ * variance of a lottery.
+ *
+ * <p>
+ * Other queues, such as those of locks and semaphores, charge nothing. They
+ * let the waiter that is furthest behind its share go first: the one with
+ * the least service, which is advanced on every dispatch by the stride of the
+ * thread's own tickets. Threads contending for a lock therefore get it in
+ * proportion to their tickets. A thread entering such a queue starts no more
+ * than one of its own strides behind the waiter that last got access, so a
+ * new thread, or one that has not run for long, cannot go ahead of the other
+ * waiters until its service catches up.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler transfers tickets through
+ * queues that transfer priority, and tickets add: the holder of such a queue
+ * gets the tickets of every thread waiting for it.
+ */
+public class StrideScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new ThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param transferPriority <tt>true</tt> if this queue should
+     *                         transfer tickets from waiting threads
+     *                         to the owning thread.
+     * @return a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new StrideQueue(transferPriority);
+    }
+
+    /**
+     * Set the number of tickets of a thread, which, as with a lottery
+     * scheduler, may be up to <tt>LotteryScheduler.ticketsMaximum</tt>.
+     */
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+                priority <= LotteryScheduler.ticketsMaximum);
+
+        getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        boolean changed = (priority < LotteryScheduler.ticketsMaximum);
+        if (changed)
+            setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        boolean changed = (priority > priorityMinimum);
+        if (changed)
+            setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    /**
+     * The stride of a thread with one ticket.
+     */
+    private static final long stride1 = 1L << 32;
+
+    /**
+     * Return the stride of a thread with the specified number of tickets. A
+     * thread with no tickets gets the stride of one ticket.
+     */
+    private static long stride(int tickets) {
+        return stride1 / Math.max(tickets, 1);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that gives access to the waiting thread with the
+     * lowest pass. The waiting threads are kept in a binary heap ordered by
+     * pass and then by arrival.
+     */
+    protected class StrideQueue extends PriorityScheduler.PriorityQueue {
+        StrideQueue(boolean transferPriority) {
+            this(transferPriority, false);
+        }
+
+        /**
+         * @param readyQueue <tt>true</tt> if the queue is known to be a ready
+         *                   queue from the start; otherwise it becomes one
+         *                   when a ready thread is first added to it.
+         */
+        private StrideQueue(boolean transferPriority, boolean readyQueue) {
+            super(transferPriority);
+
+            this.readyQueue = readyQueue;
+        }
+
+        /**
+         * Add a thread to the heap. A thread returning to the ready queue
+         * starts from the pass of the thread that was last dispatched, so it
+         * cannot make up for the time it spent blocked. Likewise, a thread
+         * entering another queue starts no more than one of its strides behind
+         * the service of the waiter that last got access.
+         */
+        protected void enqueue(PriorityScheduler.ThreadState state) {
+            ThreadState s = (ThreadState) state;
+            if (s.thread.isReady())
+                readyQueue = true;
+            if (readyQueue)
+                s.pass = Math.max(s.pass, pass);
+            else
+                s.service = Math.max(s.service,
+                        service - stride(s.getPriority()));
+            s.arrival = numArrivals++;
+
+            if (size == heap.length)
+                heap = Arrays.copyOf(heap, heap.length * 2);
+            siftUp(size++, s);
+
+            totalTickets += s.getEffectivePriority();
+        }
+
+        /**
+         * Remove a thread that has got access, charging it one stride if it
+         * is being dispatched.
+         */
+        protected void dequeue(PriorityScheduler.ThreadState state) {
+            ThreadState s = (ThreadState) state;
+            Lib.assertTrue(heap[s.heapIndex] == s);
+
+            remove(s.heapIndex);
+            totalTickets -= s.getEffectivePriority();
+
+            if (readyQueue) {
+                pass = s.pass;
+                s.pass += stride(s.getEffectivePriority());
+                s.service += stride(s.getPriority());
+            }
+            else {
+                service = s.service;
+            }
+        }
+
+        /**
+         * Scale what is left of the pass of a thread whose tickets changed,
+         * so that it moves ahead or back as if it had always had its new
+         * tickets.
+         */
+        protected void requeue(PriorityScheduler.ThreadState state, int oldPriority) {
+            ThreadState s = (ThreadState) state;
+            int tickets = s.getEffectivePriority();
+
+            long remain = s.pass - pass;
+            if (readyQueue && remain > 0) {
+                remain = (long) ((double) remain * Math.max(oldPriority, 1)
+                        / Math.max(tickets, 1));
+                s.pass = pass + remain;
+            }
+
+            totalTickets += (long) tickets - oldPriority;
+
+            int index = s.heapIndex;
+            remove(index);
+            siftUp(size++, s);
+        }
+
+        /**
+         * Waiting threads donate all of their tickets to the thread holding
+         * this queue.
+         */
+        protected int donation() {
+            return (int) Math.min(totalTickets, LotteryScheduler.ticketsMaximum);
+        }
+
+        protected ThreadState pickNextThread() {
+            return (size == 0) ? null : heap[0];
+        }
+
+        private boolean before(ThreadState s1, ThreadState s2) {
+            long key1 = readyQueue ? s1.pass : s1.service;
+            long key2 = readyQueue ? s2.pass : s2.service;
+            if (key1 != key2)
+                return key1 < key2;
+            else
+                return s1.arrival < s2.arrival;
+        }
+
+        private void remove(int index) {
+            ThreadState last = heap[--size];
+            heap[size] = null;
+
+            if (index < size) {
+                siftDown(index, last);
+                if (heap[index] == last)
+                    siftUp(index, last);
+            }
+        }
+
+        private void siftUp(int index, ThreadState s) {
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (!before(s, heap[parent]))
+                    break;
+
+                place(index, heap[parent]);
+                index = parent;
+            }
+
+            place(index, s);
+        }
+
+        private void siftDown(int index, ThreadState s) {
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size)
+                    break;
+
+                if (child + 1 < size && before(heap[child + 1], heap[child]))
+                    child++;
+                if (!before(heap[child], s))
+                    break;
+
+                place(index, heap[child]);
+                index = child;
+            }
+
+            place(index, s);
+        }
+
+        private void place(int index, ThreadState s) {
+            heap[index] = s;
+            s.heapIndex = index;
+        }
+
+        private ThreadState[] heap = new ThreadState[8];
+        private int size = 0;
+        private long numArrivals = 0;
+        /**
+         * Whether this is a ready queue, which charges threads for access.
+         */
+        private boolean readyQueue;
+        /**
+         * The pass of the thread that was last dispatched, in a ready queue.
+         */
+        private long pass = 0;
+        /**
+         * The service of the thread that last got access, in other queues.
+         */
+        private long service = 0;
+        /**
+         * The sum of the effective tickets of the waiting threads.
+         */
+        private long totalTickets = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a stride scheduler.
+     */
+    protected class ThreadState extends PriorityScheduler.ThreadState {
+        public ThreadState(KThread thread) {
+            super(thread);
+        }
+
+        /**
+         * Donated tickets add to the thread's own.
+         */
+        protected int computeEffectivePriority() {
+            return (int) Math.min(LotteryScheduler.ticketsMaximum,
+                    priority + donatedTickets);
+        }
+
+        protected void addDonation(int donation) {
+            donatedTickets += donation;
+        }
+
+        protected void removeDonation(int donation) {
+            donatedTickets -= donation;
+            Lib.assertTrue(donatedTickets >= 0);
+        }
+
+        /**
+         * The sum of the tickets donated by the queues this thread holds.
+         */
+        private long donatedTickets;
+        /**
+         * The pass of this thread, and its place in the heap of the queue it
+         * is waiting in.
+         */
+        private long pass;
+        private int heapIndex;
+        /**
+         * The sum of the strides of this thread's own tickets over every
+         * time it has been dispatched, which orders it in other queues.
+         */
+        private long service;
+    }
+
+    /**
+     * Check that threads with 3, 2 and 1 tickets get exactly that share of
+     * turns, and that a thread holding a lock gets the turns of the threads
+     * waiting for it. The threads are never forked; only their scheduling
+     * state is exercised, through queues that act as ready queues. If the
+     * kernel itself uses a stride scheduler, also check the share of real
+     * threads contending for a lock.
+     */
+    public static void selfTest() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        StrideScheduler scheduler = new StrideScheduler();
+        ThreadQueue queue = scheduler.new StrideQueue(false, true);
+
+        KThread[] threads = new KThread[3];
+        int[] turns = new int[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new KThread().setName("stride " + i);
+            scheduler.setPriority(threads[i], 3 - i);
+            queue.waitForAccess(threads[i]);
+        }
+
+        for (int turn = 0; turn < 600; turn++) {
+            KThread thread = queue.nextThread();
+            turns[Arrays.asList(threads).indexOf(thread)]++;
+            queue.waitForAccess(thread);
+        }
+        System.out.println("StrideScheduler: 3:2:1 tickets, turns "
+                + Arrays.toString(turns));
+        Lib.assertTrue(turns[0] == 300 && turns[1] == 200 && turns[2] == 100);
+
+        // the holder of a lock with 6 tickets waiting gets 7 of 8 turns
+        ThreadQueue lock = scheduler.newThreadQueue(true);
+        KThread holder = new KThread().setName("holder");
+        KThread waiter = new KThread().setName("waiter");
+        KThread other = new KThread().setName("other");
+        scheduler.setPriority(waiter, 6);
+        lock.acquire(holder);
+        lock.waitForAccess(waiter);
+        Lib.assertTrue(scheduler.getEffectivePriority(holder) == 7);
+
+        ThreadQueue ready = scheduler.new StrideQueue(false, true);
+        ready.waitForAccess(holder);
+        ready.waitForAccess(other);
+        int holderTurns = 0;
+        for (int turn = 0; turn < 800; turn++) {
+            KThread thread = ready.nextThread();
+            if (thread == holder)
+                holderTurns++;
+            ready.waitForAccess(thread);
+        }
+        Lib.assertTrue(holderTurns == 700);
+
+        lock.nextThread();
+        Lib.assertTrue(scheduler.getEffectivePriority(holder) == 1);
+
+        // a new thread and a waiter that has run for long take turns
+        while (ready.nextThread() != null)
+            ;
+        ThreadQueue semaphore = scheduler.newThreadQueue(false);
+        KThread fresh = new KThread().setName("fresh");
+        semaphore.waitForAccess(other);
+        Lib.assertTrue(semaphore.nextThread() == other);
+        semaphore.waitForAccess(other);
+        semaphore.waitForAccess(fresh);
+        int freshTurns = 0;
+        for (int turn = 0; turn < 10; turn++) {
+            KThread thread = semaphore.nextThread();
+            if (thread == fresh)
+                freshTurns++;
+            ready.waitForAccess(thread);
+            ready.nextThread();
+            semaphore.waitForAccess(thread);
+        }
+        Lib.assertTrue(freshTurns <= 6);
+
+        Machine.interrupt().restore(intStatus);
+
+        if (ThreadedKernel.scheduler instanceof StrideScheduler)
+            lockTest();
+    }
+
+    /**
+     * Have threads with 3, 2 and 1 tickets repeatedly take one lock, giving
+     * up the processor while holding it so that the others queue up, and
+     * check that they get the lock in proportion to their tickets. Waiting for
+     * the lock must not cost a thread any of its share.
+     */
+    private static void lockTest() {
+        final Lock lock = new Lock();
+        final int[] turns = new int[3];
+        final int totalTurns = 600;
+
+        KThread[] threads = new KThread[turns.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int id = i;
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        lock.acquire();
+                        if (turns[0] + turns[1] + turns[2] == totalTurns) {
+                            lock.release();
+                            break;
+                        }
+                        turns[id]++;
+                        KThread.yield();
+                        lock.release();
+                    }
+                }
+            }).setName("stride lock " + i);
+
+            boolean intStatus = Machine.interrupt().disable();
+            ThreadedKernel.scheduler.setPriority(threads[i], 3 - i);
+            Machine.interrupt().restore(intStatus);
+        }
+
+        for (int i = 0; i < threads.length; i++)
+            threads[i].fork();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        System.out.println("StrideScheduler: 3:2:1 tickets on one lock, turns "
+                + Arrays.toString(turns));
+        for (int i = 0; i < turns.length; i++)
+            Lib.assertTrue(Math.abs(turns[i] - 100 * (3 - i)) <= 3);
+    }
+}
@@ -0,0 +1,149 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A synchronized queue of <tt>int</tt>s. It behaves like a
+ * <tt>SynchList</tt> of <tt>Integer</tt>s, but keeps the values in an array
+ * that grows as needed, so adding and removing values allocates nothing.
+ */
+public class SynchIntList {
+	/**
+	 * Allocate a new synchronized queue.
+	 */
+	public SynchIntList() {
+		this(16);
+	}
+
+	/**
+	 * Allocate a new synchronized queue with room for <i>capacity</i> values
+	 * before it has to grow.
+	 *
+	 * @param capacity the initial capacity.
+	 */
+	public SynchIntList(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		values = new int[capacity];
+		lock = new Lock();
+		listEmpty = new Condition(lock);
+	}
+
+	/**
+	 * Add the specified value to the end of the queue. If another thread is
+	 * waiting in <tt>removeFirst()</tt>, it is woken up.
+	 *
+	 * @param value the value to add.
+	 */
+	public void add(int value) {
+		lock.acquire();
+		if (size == values.length)
+			grow();
+		values[(head + size) % values.length] = value;
+		size++;
+		listEmpty.wake();
+		lock.release();
+	}
+
+	/**
+	 * Remove the value at the front of the queue without blocking.
+	 *
+	 * @param empty the value to return if the queue is empty.
+	 * @return the value removed from the front of the queue, or <i>empty</i>.
+	 */
+	public int pop(int empty) {
+		int value;
+
+		lock.acquire();
+		if (size == 0)
+			value = empty;
+		else
+			value = take();
+		lock.release();
+
+		return value;
+	}
+
+	/**
+	 * Remove a value from the front of the queue, blocking until the queue is
+	 * non-empty if necessary.
+	 *
+	 * @return the value removed from the front of the queue.
+	 */
+	public int removeFirst() {
+		int value;
+
+		lock.acquire();
+		while (size == 0)
+			listEmpty.sleep();
+		value = take();
+		lock.release();
+
+		return value;
+	}
+
+	/**
+	 * Return the number of values in the queue.
+	 *
+	 * @return the number of values in the queue.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private int take() {
+		int value = values[head];
+		head = (head + 1) % values.length;
+		size--;
+		return value;
+	}
+
+	/**
+	 * Double the capacity of the queue, unwrapping the values so that the
+	 * first is at index 0.
+	 */
+	private void grow() {
+		int[] grown = new int[values.length * 2];
+		for (int i = 0; i < size; i++)
+			grown[i] = values[(head + i) % values.length];
+		values = grown;
+		head = 0;
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		final SynchIntList ping = new SynchIntList(1);
+		final SynchIntList pong = new SynchIntList(1);
+
+		new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 10; i++)
+					pong.add(ping.removeFirst());
+			}
+		}).setName("int ping").fork();
+
+		for (int i = 0; i < 10; i++) {
+			ping.add(i);
+			Lib.assertTrue(pong.removeFirst() == i);
+		}
+
+		// growing keeps the order, even with the values wrapped around
+		SynchIntList list = new SynchIntList(4);
+		list.add(-1);
+		list.add(-2);
+		Lib.assertTrue(list.pop(0) == -1);
+		for (int i = 0; i < 100; i++)
+			list.add(i);
+		Lib.assertTrue(list.pop(0) == -2);
+		for (int i = 0; i < 100; i++)
+			Lib.assertTrue(list.pop(-1) == i);
+		Lib.assertTrue(list.pop(-1) == -1 && list.size() == 0);
+	}
+
+	private int[] values;
+	private int head = 0, size = 0;
+	private Lock lock;
+	private Condition listEmpty;
+}
@@ -117,6 +117,53 @@ public class SynchList {
 		}
 	}
 
+	/**
+	 * Measure a producer/consumer workload: two producers add items to one
+	 * queue that two consumers remove them from. Prints the time taken and
+	 * how often the consumers blocked, counting both waiting for an item and
+	 * waiting for the lock.
+	 */
+	public static void benchmark() {
+		final int items = 20000;
+		final SynchList list = new SynchList();
+		final Integer item = new Integer(0);
+
+		KThread[] threads = new KThread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final boolean producer = (i < 2);
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < items; j++) {
+						if (producer)
+							list.add(item);
+						else
+							list.removeFirst();
+					}
+				}
+			}).setName((producer ? "producer " : "consumer ") + i % 2);
+		}
+
+		long startTicks = Machine.timer().getTime();
+		long start = System.nanoTime();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+		long elapsed = System.nanoTime() - start;
+		long ticks = Machine.timer().getTime() - startTicks;
+
+		int blocks = 0, preemptions = 0;
+		for (int i = 2; i < threads.length; i++) {
+			blocks += threads[i].getStats().getVoluntarySwitches();
+			preemptions += threads[i].getStats().getInvoluntarySwitches();
+		}
+
+		System.out.println("SynchList.benchmark: " + 2 * items + " items in "
+				+ elapsed / 1000000 + "ms, " + ticks + " ticks, "
+				+ "consumers blocked " + blocks + " times, preempted "
+				+ preemptions + " times");
+	}
+
 	private LinkedList<Object> list;
 	private Lock lock;
 	private Condition listEmpty;
@@ -0,0 +1,185 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where simulated time went for one <tt>KThread</tt>: how long it ran, how
+ * long it waited to run after being made ready, and how often it gave up the
+ * processor. <tt>KThread</tt> keeps these up to date whatever scheduler is in
+ * use.
+ *
+ * <p>
+ * A switch is <i>voluntary</i> if the thread blocked or finished, and
+ * <i>involuntary</i> if it yielded while still able to run, which is what a
+ * timer interrupt makes it do.
+ */
+public final class ThreadStats {
+    ThreadStats(String name, int id) {
+        this.name = name;
+        this.id = id;
+        runStart = Machine.timer().getTime();
+
+        if (isEnabled())
+            all.add(this);
+    }
+
+    /**
+     * Return whether <tt>ThreadedKernel.threadStats</tt> is set. Only then are
+     * the statistics of finished threads kept for <tt>all()</tt>.
+     *
+     * @return <tt>true</tt> if thread statistics are enabled.
+     */
+    public static boolean isEnabled() {
+        if (enabled == null)
+            enabled = Config.getBoolean("ThreadedKernel.threadStats", false);
+        return enabled;
+    }
+
+    /**
+     * Return the statistics of every thread created so far, including threads
+     * that have finished, in the order they were created. Empty unless
+     * <tt>isEnabled()</tt>.
+     *
+     * @return the statistics of every thread.
+     */
+    public static List<ThreadStats> all() {
+        return new ArrayList<ThreadStats>(all);
+    }
+
+    /**
+     * Print a table of the statistics of every thread.
+     */
+    public static void print() {
+        System.out.println("Thread statistics (ticks):");
+        System.out.println(String.format("  %-24s %10s %10s %10s %8s %8s",
+                "thread", "cpu", "wait", "max wait",
+                "vol", "invol"));
+
+        for (ThreadStats stats : all()) {
+            System.out.println(String.format(
+                    "  %-24s %10d %10d %10d %8d %8d",
+                    stats.name + " (#" + stats.id + ")",
+                    stats.getCpuTicks(), stats.getWaitTicks(),
+                    stats.getMaxReadyLatency(),
+                    stats.getVoluntarySwitches(),
+                    stats.getInvoluntarySwitches()));
+        }
+    }
+
+    /**
+     * Return the name of the thread.
+     *
+     * @return the name of the thread.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Return the number of ticks the thread has run for, including the
+     * current run if it is running now.
+     *
+     * @return the ticks the thread has run for.
+     */
+    public long getCpuTicks() {
+        if (running)
+            return cpuTicks + Machine.timer().getTime() - runStart;
+        else
+            return cpuTicks;
+    }
+
+    /**
+     * Return the number of ticks the thread has spent ready but not running.
+     *
+     * @return the ticks spent waiting to run.
+     */
+    public long getWaitTicks() {
+        return waitTicks;
+    }
+
+    /**
+     * Return the longest time from the thread being made ready to it running.
+     *
+     * @return the longest wait to run, in ticks.
+     */
+    public long getMaxReadyLatency() {
+        return maxReadyLatency;
+    }
+
+    /**
+     * Return the number of times the thread blocked or finished.
+     *
+     * @return the number of voluntary switches.
+     */
+    public int getVoluntarySwitches() {
+        return voluntarySwitches;
+    }
+
+    /**
+     * Return the number of times the thread yielded while still able to run.
+     *
+     * @return the number of involuntary switches.
+     */
+    public int getInvoluntarySwitches() {
+        return involuntarySwitches;
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Called when the thread is made ready.
+     */
+    void readied(long time) {
+        readyTime = time;
+        ready = true;
+    }
+
+    /**
+     * Called when the thread is given the processor.
+     */
+    void dispatched(long time) {
+        if (ready) {
+            long latency = time - readyTime;
+            waitTicks += latency;
+            if (latency > maxReadyLatency)
+                maxReadyLatency = latency;
+            ready = false;
+        }
+
+        runStart = time;
+        running = true;
+    }
+
+    /**
+     * Called when the thread gives up the processor to another thread.
+     *
+     * @param voluntary <tt>true</tt> if it blocked or finished rather than
+     *                  yielded.
+     */
+    void descheduled(long time, boolean voluntary) {
+        cpuTicks += time - runStart;
+        running = false;
+
+        if (voluntary)
+            voluntarySwitches++;
+        else
+            involuntarySwitches++;
+    }
+
+    private String name;
+    private int id;
+
+    private long cpuTicks = 0, waitTicks = 0, maxReadyLatency = 0;
+    private int voluntarySwitches = 0, involuntarySwitches = 0;
+
+    private long readyTime, runStart;
+    private boolean ready = false, running = false;
+
+    private static Boolean enabled = null;
+    private static final List<ThreadStats> all = new ArrayList<ThreadStats>();
+}
@@ -50,7 +50,15 @@ public class ThreadedKernel extends Kernel {
 //	Alarm.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+//	SynchIntList.selfTest();
+//	SynchList.benchmark();
+//	Channel.selfTest();
+//	Channel.benchmark();
 //	LotteryScheduler.selfTest();
+//	PriorityScheduler.selfTest();
+//	StrideScheduler.selfTest();
+//	MLFQScheduler.selfTest();
+//	Interrupt.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -64,9 +72,17 @@ public class ThreadedKernel extends Kernel {
 
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Never returns. If
+     * <tt>ThreadedKernel.threadStats</tt> is set, first print how much time
+     * each thread spent running and waiting, and if
+     * <tt>LockProfile.enabled</tt> is set, how contended each lock was.
      */
     public void terminate() {
+	if (ThreadStats.isEnabled())
+	    ThreadStats.print();
+	if (LockProfile.isEnabled())
+	    LockProfile.print();
+
 	Machine.halt();
     }
 
@@ -85,4 +101,6 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static MLFQScheduler dummy8 = null;
+    private static StrideScheduler dummy9 = null;
 }
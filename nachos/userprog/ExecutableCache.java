@@ -0,0 +1,153 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.Lock;
+import nachos.threads.ThreadedKernel;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of the contents of recently executed files. The first time a
+ * program is executed, its whole file is read with a single read, rather
+ * than a read for the headers and another for every page; after that, until
+ * it is evicted, executing it again reads nothing from the file system.
+ *
+ * <p>
+ * The cache holds at most <tt>ExecutableCache.maxBytes</tt> bytes, evicting
+ * the least recently executed files first. The kernel must call
+ * <tt>invalidate()</tt> whenever a file is written, truncated or removed;
+ * <tt>UserKernel.fileChanged()</tt> does this.
+ */
+public class ExecutableCache {
+    /**
+     * Allocate a new, empty executable cache.
+     */
+    public ExecutableCache() {
+        maxBytes = Config.getInteger("ExecutableCache.maxBytes", 128 * 1024);
+        Lib.assertTrue(maxBytes >= 0);
+
+        lock = new Lock("ExecutableCache.lock");
+    }
+
+    /**
+     * Open an executable file for reading, from the cache if possible.
+     *
+     * @param name the name of the file.
+     * @return a file holding the contents of the executable, or
+     * <tt>null</tt> if it could not be opened or read.
+     */
+    public OpenFile open(String name) {
+        lock.acquire();
+        byte[] contents = files.get(name);
+        long generation = this.generation;
+        if (contents != null)
+            numHits++;
+        lock.release();
+
+        if (contents != null)
+            return new CachedFile(contents);
+
+        // read the file without holding the lock, which would make every
+        // other exec wait for the file system
+        OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+        if (file == null)
+            return null;
+
+        contents = new byte[file.length()];
+        int read = file.read(0, contents, 0, contents.length);
+        file.close();
+        if (read != contents.length)
+            return null;
+
+        lock.acquire();
+        numMisses++;
+        // a file changed while it was being read is not cached
+        if (generation == this.generation && contents.length <= maxBytes) {
+            byte[] old = files.put(name, contents);
+            if (old != null)
+                numBytes -= old.length;
+            numBytes += contents.length;
+            evict();
+        }
+        lock.release();
+
+        return new CachedFile(contents);
+    }
+
+    /**
+     * Forget the cached contents of a file that has changed.
+     *
+     * @param name the name of the file.
+     */
+    public void invalidate(String name) {
+        lock.acquire();
+
+        generation++;
+        byte[] old = files.remove(name);
+        if (old != null)
+            numBytes -= old.length;
+
+        lock.release();
+    }
+
+    /**
+     * Return the number of executions that found their file in the cache.
+     *
+     * @return the number of hits.
+     */
+    public int getNumHits() {
+        return numHits;
+    }
+
+    /**
+     * Return the number of executions that had to read their file.
+     *
+     * @return the number of misses.
+     */
+    public int getNumMisses() {
+        return numMisses;
+    }
+
+    /**
+     * Evict the least recently executed files until the cache is within its
+     * size.
+     */
+    private void evict() {
+        Iterator<byte[]> it = files.values().iterator();
+        while (numBytes > maxBytes) {
+            numBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * A read-only file whose contents are in memory. Reading it takes a
+     * kernel tick, as copying from memory would, rather than the disk
+     * latency of a real file; <tt>Lib.strictReadFile()</tt>, which the COFF
+     * loader uses, requires every read to take some simulated time. Reads
+     * must be made with interrupts enabled.
+     */
+    private static class CachedFile extends ArrayFile {
+        CachedFile(byte[] contents) {
+            super(contents);
+        }
+
+        public int read(int position, byte[] buf, int offset, int length) {
+            boolean intStatus = Machine.interrupt().disable();
+            int read = super.read(position, buf, offset, length);
+            Machine.interrupt().restore(intStatus);
+
+            return read;
+        }
+    }
+
+    private int maxBytes, numBytes = 0;
+    /** The contents of each cached file, least recently executed first. */
+    private LinkedHashMap<String, byte[]> files =
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    /** Incremented whenever any file changes. */
+    private long generation = 0;
+    private int numHits = 0, numMisses = 0;
+    private Lock lock;
+}
@@ -0,0 +1,370 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.Lock;
+
+/**
+ * Keeps track of which frames of physical memory are free. A bitmap records
+ * the state of every frame, and the first and last frame of each run of
+ * contiguous free frames record its length and its start, so that a whole
+ * run can be taken, and a freed frame joined to its neighbours, without
+ * scanning the bitmap. A count of the runs of each length keeps track of the
+ * longest run as runs are split and joined.
+ *
+ * <p>
+ * Frames are always handed out lowest first, which keeps the free frames
+ * together at the top of memory for as long as possible. A request for
+ * several frames is satisfied completely or not at all.
+ *
+ * <p>
+ * The kernel's allocator reports the number of free frames and how they are
+ * fragmented to <tt>Machine.reportFrames()</tt> after every change, so that
+ * they are printed with the machine's statistics.
+ *
+ * <p>
+ * A frame may be shared, for instance between a process and a child forked
+ * from it; <tt>share()</tt> counts one more user of the frame, and the frame
+ * is only freed when every user has freed it.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator with every frame free.
+     *
+     * @param numFrames the number of frames of physical memory.
+     * @param report    <tt>true</tt> if this is the kernel's allocator,
+     *                  which reports to <tt>Machine.reportFrames()</tt>.
+     */
+    public FrameAllocator(int numFrames, boolean report) {
+        Lib.assertTrue(numFrames > 0);
+
+        this.numFrames = numFrames;
+        freeBits = new long[(numFrames + 63) / 64];
+        for (int frame = 0; frame < numFrames; frame++)
+            freeBits[frame / 64] |= 1L << frame;
+        numFree = numFrames;
+        runLength = new int[numFrames];
+        runFirst = new int[numFrames];
+        runsOfLength = new int[numFrames + 1];
+        addRun(0, numFrames);
+        sharers = new int[numFrames];
+
+        lock = new Lock("FrameAllocator.lock");
+
+        this.report = report;
+        updateStats();
+    }
+
+    /**
+     * Allocate one frame.
+     *
+     * @return the frame, or -1 if every frame is in use.
+     */
+    public int allocate() {
+        lock.acquire();
+
+        int frame = -1;
+        if (numFree > 0) {
+            frame = nextFree(0);
+            take(frame, 1);
+            updateStats();
+        }
+
+        lock.release();
+        return frame;
+    }
+
+    /**
+     * Allocate <i>count</i> frames, which need not be contiguous.
+     *
+     * @param count the number of frames to allocate.
+     * @return the frames, in increasing order, or <tt>null</tt> if fewer
+     * than <i>count</i> frames are free, in which case nothing is allocated.
+     */
+    public int[] allocate(int count) {
+        Lib.assertTrue(count >= 0);
+
+        lock.acquire();
+
+        int[] frames = null;
+        if (count <= numFree) {
+            frames = new int[count];
+            int n = 0, first = 0;
+            while (n < count) {
+                first = nextFree(first);
+                int length = Math.min(runLength[first], count - n);
+                for (int i = 0; i < length; i++)
+                    frames[n++] = first + i;
+                take(first, length);
+            }
+            updateStats();
+        }
+
+        lock.release();
+        return frames;
+    }
+
+    /**
+     * Allocate <i>count</i> physically contiguous frames, from the lowest
+     * run of free frames that is long enough.
+     *
+     * @param count the number of frames to allocate.
+     * @return the first of the frames, or -1 if no run of free frames is
+     * long enough.
+     */
+    public int allocateContiguous(int count) {
+        Lib.assertTrue(count > 0);
+
+        lock.acquire();
+
+        int first = -1;
+        if (count <= largestRun) {
+            first = nextFree(0);
+            while (runLength[first] < count)
+                first = nextFree(first + runLength[first]);
+        }
+        if (first != -1) {
+            take(first, count);
+            updateStats();
+        }
+
+        lock.release();
+        return first;
+    }
+
+    /**
+     * Count one more user of an allocated frame, which will then have to be
+     * freed once more before it is actually free.
+     *
+     * @param frame the frame to share.
+     */
+    public void share(int frame) {
+        lock.acquire();
+
+        Lib.assertTrue(frame >= 0 && frame < numFrames && !isFree(frame));
+        sharers[frame]++;
+
+        lock.release();
+    }
+
+    /**
+     * Return whether an allocated frame has more than one user.
+     *
+     * @param frame the frame.
+     * @return <tt>true</tt> if the frame is shared.
+     */
+    public boolean isShared(int frame) {
+        return sharers[frame] > 0;
+    }
+
+    /**
+     * Free a frame. The frame must be allocated. If the frame is shared, this
+     * only counts one fewer user of it.
+     *
+     * @param frame the frame to free.
+     */
+    public void free(int frame) {
+        lock.acquire();
+
+        release(frame);
+        updateStats();
+
+        lock.release();
+    }
+
+    /**
+     * Free several frames at once, as <tt>free(int)</tt> does. The frames
+     * must be allocated.
+     *
+     * @param frames the frames to free.
+     */
+    public void free(int[] frames) {
+        lock.acquire();
+
+        for (int frame : frames)
+            release(frame);
+        updateStats();
+
+        lock.release();
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return the number of free frames.
+     */
+    public int getNumFree() {
+        return numFree;
+    }
+
+    /**
+     * Return the number of runs of contiguous free frames, which is 1 if the
+     * free frames are not fragmented at all.
+     *
+     * @return the number of runs of free frames.
+     */
+    public int getNumFreeRuns() {
+        return numRuns;
+    }
+
+    /**
+     * Return the length of the longest run of contiguous free frames, which
+     * is the most frames <tt>allocateContiguous()</tt> can allocate.
+     *
+     * @return the length of the longest run of free frames.
+     */
+    public int getLargestFreeRun() {
+        return largestRun;
+    }
+
+    private boolean isFree(int frame) {
+        return frame >= 0 && frame < numFrames
+                && (freeBits[frame / 64] & (1L << frame)) != 0;
+    }
+
+    /**
+     * Return the lowest free frame at or above <i>from</i>, which is the
+     * first frame of a run if <i>from</i> is not itself free, or -1 if there
+     * is none.
+     */
+    private int nextFree(int from) {
+        if (from >= numFrames)
+            return -1;
+
+        int word = from / 64;
+        long bits = freeBits[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == freeBits.length)
+                return -1;
+            bits = freeBits[word];
+        }
+        return word * 64 + Long.numberOfTrailingZeros(bits);
+    }
+
+    private void addRun(int first, int length) {
+        runLength[first] = length;
+        runFirst[first + length - 1] = first;
+        runsOfLength[length]++;
+        numRuns++;
+        largestRun = Math.max(largestRun, length);
+    }
+
+    private int removeRun(int first) {
+        int length = runLength[first];
+        runLength[first] = 0;
+        runsOfLength[length]--;
+        numRuns--;
+        return length;
+    }
+
+    /**
+     * Bring <tt>largestRun</tt> back down to the longest run there is, once a
+     * run has been split or taken.
+     */
+    private void settleLargestRun() {
+        while (largestRun > 0 && runsOfLength[largestRun] == 0)
+            largestRun--;
+    }
+
+    /**
+     * Mark <i>length</i> frames allocated, starting with the first frame of
+     * a free run.
+     */
+    private void take(int first, int length) {
+        int runLength = removeRun(first);
+        Lib.assertTrue(length <= runLength);
+        if (length < runLength)
+            addRun(first + length, runLength - length);
+        settleLargestRun();
+
+        for (int frame = first; frame < first + length; frame++)
+            freeBits[frame / 64] &= ~(1L << frame);
+        numFree -= length;
+    }
+
+    /**
+     * Mark a frame free, joining it to the free runs on either side, unless
+     * it still has another user.
+     */
+    private void release(int frame) {
+        Lib.assertTrue(frame >= 0 && frame < numFrames && !isFree(frame));
+
+        if (sharers[frame] > 0) {
+            sharers[frame]--;
+            return;
+        }
+
+        int first = frame, length = 1;
+        if (isFree(frame - 1)) {
+            first = runFirst[frame - 1];
+            length += removeRun(first);
+        }
+        if (isFree(frame + 1))
+            length += removeRun(frame + 1);
+        addRun(first, length);
+
+        freeBits[frame / 64] |= 1L << frame;
+        numFree++;
+    }
+
+    private void updateStats() {
+        if (report)
+            Machine.reportFrames(numFrames, numFree, numRuns, largestRun);
+    }
+
+    /**
+     * Test that frames are allocated lowest first, that freed frames are
+     * joined back into runs, and that requests that cannot be met allocate
+     * nothing.
+     */
+    public static void selfTest() {
+        FrameAllocator frames = new FrameAllocator(10, false);
+
+        int[] first = frames.allocate(4);
+        Lib.assertTrue(first[0] == 0 && first[3] == 3);
+        Lib.assertTrue(frames.allocateContiguous(3) == 4);
+        Lib.assertTrue(frames.allocate() == 7);
+        Lib.assertTrue(frames.allocate(3) == null);
+        Lib.assertTrue(frames.getNumFree() == 2);
+
+        // free 1 and 2, leaving runs 1-2 and 8-9
+        frames.free(new int[]{1, 2});
+        Lib.assertTrue(frames.getNumFreeRuns() == 2);
+        Lib.assertTrue(frames.getLargestFreeRun() == 2);
+        Lib.assertTrue(frames.allocateContiguous(3) == -1);
+
+        // freeing 3 joins 1-2 to it
+        frames.free(3);
+        Lib.assertTrue(frames.getNumFreeRuns() == 2);
+        Lib.assertTrue(frames.getLargestFreeRun() == 3);
+        Lib.assertTrue(frames.allocateContiguous(3) == 1);
+
+        int[] rest = frames.allocate(2);
+        Lib.assertTrue(rest[0] == 8 && rest[1] == 9);
+        Lib.assertTrue(frames.allocate() == -1 && frames.getNumFreeRuns() == 0);
+
+        // a shared frame is freed by its last user
+        frames.share(5);
+        Lib.assertTrue(frames.isShared(5));
+        frames.free(5);
+        Lib.assertTrue(!frames.isShared(5) && frames.getNumFree() == 0);
+
+        for (int frame = 0; frame < 10; frame++)
+            frames.free(frame);
+        Lib.assertTrue(frames.getNumFreeRuns() == 1);
+        Lib.assertTrue(frames.getLargestFreeRun() == 10);
+    }
+
+    private int numFrames, numFree;
+    private long[] freeBits;
+    /** The number of users of each allocated frame beyond the first. */
+    private int[] sharers;
+    /** The length of each run of free frames, kept at its first frame. */
+    private int[] runLength;
+    /** The first frame of each run of free frames, kept at its last frame. */
+    private int[] runFirst;
+    /** The number of runs of free frames of each length. */
+    private int[] runsOfLength;
+    private int numRuns, largestRun;
+    private Lock lock;
+    private boolean report;
+}
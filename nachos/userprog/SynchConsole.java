@@ -1,15 +1,31 @@
 package nachos.userprog;
 
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.OpenFile;
 import nachos.machine.SerialConsole;
+import nachos.threads.KThread;
 import nachos.threads.Lock;
 import nachos.threads.Semaphore;
+import nachos.threads.ThreadedKernel;
+
+import java.util.LinkedList;
 
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Reading the console through an <tt>OpenFile</tt> never blocks, so a process
+ * waiting for a key polls. If <tt>SynchConsole.pollDelay</tt> is set, a read
+ * that finds no byte first sleeps until a byte arrives or that many ticks
+ * pass, so the poller gives up the processor instead of spinning, and a
+ * scheduler sees it block on the console.
+ *
+ * <p>
+ * With debug flag 'k', the number of ticks from each byte arriving to the next
+ * byte written, normally its echo, is printed.
  */
 public class SynchConsole {
     /**
@@ -20,6 +36,9 @@ public class SynchConsole {
     public SynchConsole(SerialConsole console) {
         this.console = console;
 
+        pollDelay = Config.getInteger("SynchConsole.pollDelay", 0);
+        Lib.assertTrue(pollDelay >= 0);
+
         Runnable receiveHandler = new Runnable() {
             public void run() {
                 receiveInterrupt();
@@ -50,10 +69,13 @@ public class SynchConsole {
 
         if (block || charAvailable) {
             charAvailable = false;
+            ThreadedKernel.scheduler.setWaitingForIO(true);
             readWait.P();
+            ThreadedKernel.scheduler.setWaitingForIO(false);
 
             value = console.readByte();
             Lib.assertTrue(value != -1);
+            echoPending = true;
         } else {
             value = -1;
         }
@@ -74,7 +96,30 @@ public class SynchConsole {
 
     private void receiveInterrupt() {
         charAvailable = true;
+        arrivalTime = Machine.timer().getTime();
         readWait.V();
+
+        while (!pollers.isEmpty())
+            ThreadedKernel.alarm.cancel(pollers.removeFirst());
+    }
+
+    /**
+     * Sleep until a byte arrives or <tt>pollDelay</tt> ticks pass, unless a
+     * byte is already available.
+     */
+    private void waitForByte() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (!charAvailable) {
+            KThread thread = KThread.currentThread();
+            pollers.add(thread);
+            ThreadedKernel.scheduler.setWaitingForIO(true);
+            ThreadedKernel.alarm.waitUntil(pollDelay);
+            ThreadedKernel.scheduler.setWaitingForIO(false);
+            pollers.remove(thread);
+        }
+
+        Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -83,9 +128,17 @@ public class SynchConsole {
      * @param    value    the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
+        if (echoPending) {
+            echoPending = false;
+            Lib.debug(dbgKeystroke, "echo after "
+                    + (Machine.timer().getTime() - arrivalTime) + " ticks");
+        }
+
         writeLock.acquire();
         console.writeByte(value);
+        ThreadedKernel.scheduler.setWaitingForIO(true);
         writeWait.P();
+        ThreadedKernel.scheduler.setWaitingForIO(false);
         writeLock.release();
     }
 
@@ -104,11 +157,18 @@ public class SynchConsole {
 
     private boolean charAvailable = false;
 
+    private int pollDelay;
+    private LinkedList<KThread> pollers = new LinkedList<KThread>();
+
+    private long arrivalTime;
+    private boolean echoPending = false;
+    private static final char dbgKeystroke = 'k';
+
     private SerialConsole console;
-    private Lock readLock = new Lock();
-    private Lock writeLock = new Lock();
-    private Semaphore readWait = new Semaphore(0);
-    private Semaphore writeWait = new Semaphore(0);
+    private Lock readLock = new Lock("SynchConsole.readLock");
+    private Lock writeLock = new Lock("SynchConsole.writeLock");
+    private Semaphore readWait = new Semaphore(0, "SynchConsole.readWait");
+    private Semaphore writeWait = new Semaphore(0, "SynchConsole.writeWait");
 
     private class File extends OpenFile {
         File(boolean canRead, boolean canWrite) {
@@ -126,6 +186,9 @@ public class SynchConsole {
             if (!canRead)
                 return 0;
 
+            if (pollDelay > 0 && length > 0)
+                waitForByte();
+
             int i;
             for (i = 0; i < length; i++) {
                 int value = SynchConsole.this.readByte(false);
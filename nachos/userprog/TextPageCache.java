@@ -0,0 +1,268 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.Lock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * A kernel-wide cache of the read-only pages of executables. Every process
+ * running the same executable maps the same frames for its read-only
+ * sections, so only the first process to run an executable reads those
+ * pages from the file, and the code takes up memory only once however many
+ * processes are running it.
+ *
+ * <p>
+ * An executable is identified by its file name and length. Each cached frame
+ * counts the processes that map it. A frame no process maps stays cached, so
+ * running the same program again later does not read it again, until the
+ * frame is needed for something else: <tt>reclaim()</tt> frees such frames,
+ * those that became unmapped first going first.
+ *
+ * <p>
+ * The kernel must call <tt>invalidate()</tt> whenever a file is written,
+ * truncated or removed, so that a changed executable is read again;
+ * <tt>UserKernel.fileChanged()</tt> does this.
+ */
+public class TextPageCache {
+    /**
+     * Allocate a new, empty text page cache.
+     *
+     * @param frames the allocator to take frames from and return them to.
+     */
+    public TextPageCache(FrameAllocator frames) {
+        this.frames = frames;
+
+        int numFrames = Machine.processor().getNumPhysPages();
+        refCounts = new int[numFrames];
+        cached = new boolean[numFrames];
+        owners = new int[numFrames][];
+        ownerIndex = new int[numFrames];
+
+        lock = new Lock("TextPageCache.lock");
+    }
+
+    /**
+     * Return the frame holding a page of a read-only section of an
+     * executable, reading the page into a new frame if it is not cached, and
+     * count one more mapping of it.
+     *
+     * @param name          the name of the executable file.
+     * @param length        the length of the executable file.
+     * @param section       the section.
+     * @param sectionNumber the number of the section within the executable.
+     * @param spn           the page within the section.
+     * @return the frame, or -1 if the page is not cached and there is no free
+     * frame to read it into.
+     */
+    public int map(String name, int length, CoffSection section,
+                   int sectionNumber, int spn) {
+        Lib.assertTrue(section.isReadOnly());
+
+        lock.acquire();
+
+        Image image = images.get(name);
+        if (image != null && image.length != length) {
+            forget(name);
+            image = null;
+        }
+        if (image == null) {
+            image = new Image(length, section.getCoff().getNumSections());
+            images.put(name, image);
+        }
+
+        int[] pages = image.frames[sectionNumber];
+        if (pages == null) {
+            pages = new int[section.getLength()];
+            for (int i = 0; i < pages.length; i++)
+                pages[i] = -1;
+            image.frames[sectionNumber] = pages;
+        }
+
+        int ppn = pages[spn];
+        if (ppn == -1) {
+            ppn = frames.allocate();
+            if (ppn == -1 && reclaimLocked(1) == 1)
+                ppn = frames.allocate();
+
+            if (ppn != -1) {
+                section.loadPage(spn, ppn);
+                pages[spn] = ppn;
+                cached[ppn] = true;
+                owners[ppn] = pages;
+                ownerIndex[ppn] = spn;
+                numMisses++;
+            }
+        }
+        else {
+            numHits++;
+        }
+
+        if (ppn != -1) {
+            if (refCounts[ppn]++ == 0)
+                unmapped.remove(ppn);
+        }
+
+        lock.release();
+        return ppn;
+    }
+
+    /**
+     * Count one more mapping of a frame that is already mapped, as when a
+     * process is forked.
+     *
+     * @param ppn the frame, which must belong to this cache.
+     */
+    public void share(int ppn) {
+        lock.acquire();
+
+        Lib.assertTrue(refCounts[ppn] > 0);
+        refCounts[ppn]++;
+
+        lock.release();
+    }
+
+    /**
+     * Count one fewer mapping of a frame, if it belongs to this cache.
+     *
+     * @param ppn the frame.
+     * @return <tt>true</tt> if the frame belongs to this cache, or
+     * <tt>false</tt> if it is a private frame that the caller must free.
+     */
+    public boolean unmap(int ppn) {
+        lock.acquire();
+
+        boolean shared = cached[ppn] || refCounts[ppn] > 0;
+        if (shared) {
+            Lib.assertTrue(refCounts[ppn] > 0);
+            if (--refCounts[ppn] == 0) {
+                if (cached[ppn])
+                    unmapped.add(ppn);
+                else
+                    frames.free(ppn);
+            }
+        }
+
+        lock.release();
+        return shared;
+    }
+
+    /**
+     * Free up to <i>count</i> cached frames that no process maps.
+     *
+     * @param count the number of frames wanted.
+     * @return the number of frames freed.
+     */
+    public int reclaim(int count) {
+        lock.acquire();
+        int freed = reclaimLocked(count);
+        lock.release();
+
+        return freed;
+    }
+
+    /**
+     * Forget the cached pages of a file that has changed. Frames that no
+     * process maps are freed now, and the others once their last mapping is
+     * gone.
+     *
+     * @param name the name of the file.
+     */
+    public void invalidate(String name) {
+        lock.acquire();
+        forget(name);
+        lock.release();
+    }
+
+    /**
+     * Return the number of pages found in the cache.
+     *
+     * @return the number of hits.
+     */
+    public int getNumHits() {
+        return numHits;
+    }
+
+    /**
+     * Return the number of pages that had to be read from an executable.
+     *
+     * @return the number of misses.
+     */
+    public int getNumMisses() {
+        return numMisses;
+    }
+
+    private int reclaimLocked(int count) {
+        int freed = 0;
+        Iterator<Integer> it = unmapped.iterator();
+        while (freed < count && it.hasNext()) {
+            int ppn = it.next();
+            it.remove();
+            drop(ppn);
+            frames.free(ppn);
+            freed++;
+        }
+
+        return freed;
+    }
+
+    private void forget(String name) {
+        Image image = images.remove(name);
+        if (image == null)
+            return;
+
+        for (int[] pages : image.frames) {
+            if (pages == null)
+                continue;
+
+            for (int ppn : pages) {
+                if (ppn == -1)
+                    continue;
+
+                cached[ppn] = false;
+                owners[ppn] = null;
+                if (refCounts[ppn] == 0) {
+                    unmapped.remove(ppn);
+                    frames.free(ppn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove an unmapped frame from the image it caches a page of.
+     */
+    private void drop(int ppn) {
+        owners[ppn][ownerIndex[ppn]] = -1;
+        owners[ppn] = null;
+        cached[ppn] = false;
+    }
+
+    /**
+     * The cached pages of one executable.
+     */
+    private static class Image {
+        Image(int length, int numSections) {
+            this.length = length;
+            frames = new int[numSections][];
+        }
+
+        int length;
+        /** The frame of each page of each read-only section, or -1. */
+        int[][] frames;
+    }
+
+    private FrameAllocator frames;
+    private HashMap<String, Image> images = new HashMap<String, Image>();
+    private int[] refCounts;
+    private boolean[] cached;
+    /** The page array of the image each cached frame belongs to. */
+    private int[][] owners;
+    private int[] ownerIndex;
+    /** The cached frames no process maps, least recently unmapped first. */
+    private LinkedHashSet<Integer> unmapped = new LinkedHashSet<Integer>();
+    private int numHits = 0, numMisses = 0;
+    private Lock lock;
+}
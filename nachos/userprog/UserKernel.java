@@ -6,7 +6,6 @@ import nachos.machine.Machine;
 import nachos.machine.Processor;
 import nachos.threads.KThread;
 import nachos.threads.Lock;
-import nachos.threads.SynchList;
 import nachos.threads.ThreadedKernel;
 
 import java.util.HashMap;
@@ -32,13 +31,13 @@ public class UserKernel extends ThreadedKernel {
         console = new SynchConsole(Machine.console());
 
         allProcesses = new HashMap<>();//初始化全局进程表
-        processesLock = new Lock();//初始化访问用户进程表的锁
+        processesLock = new Lock("UserKernel.processesLock");//初始化访问用户进程表的锁
 
         //空闲帧表
-        freePages=new SynchList();
-        for(int i=0;i<Machine.processor().getNumPhysPages();i++) {
-            freePages.add(i);
-        }
+        frameAllocator = new FrameAllocator(
+                Machine.processor().getNumPhysPages(), true);
+        textPages = new TextPageCache(frameAllocator);
+        executables = new ExecutableCache();
 
         Machine.processor().setExceptionHandler(() -> exceptionHandler());
     }
@@ -48,6 +47,8 @@ public class UserKernel extends ThreadedKernel {
      */
     public void selfTest() {
         super.selfTest();
+//        FrameAllocator.selfTest();
+//        UserProcess.selfTest();
 
 //        System.out.println("Testing the console device. Typed characters");
 //        System.out.println("will be echoed until q is typed.");
@@ -180,7 +181,29 @@ public class UserKernel extends ThreadedKernel {
      * @author dpf
      */
     public Integer getOneFreePage(int pid,int vPageNum) {
-        return (Integer)freePages.pop();
+        int ppn = frameAllocator.allocate();
+        if (ppn == -1 && textPages.reclaim(1) == 1)
+            ppn = frameAllocator.allocate();
+        return (ppn == -1) ? null : ppn;
+    }
+
+    /**
+     * Allocate every physical page a process needs at once, so that it
+     * either gets all of them or none.
+     *
+     * @param pid   the process the pages are for.
+     * @param count the number of pages.
+     * @return the physical page numbers, or <tt>null</tt> if fewer than
+     * <i>count</i> pages are free.
+     */
+    public int[] getFreePages(int pid, int count) {
+        int[] ppns = frameAllocator.allocate(count);
+        if (ppns == null) {
+            // make room by dropping cached code no process is running
+            textPages.reclaim(count - frameAllocator.getNumFree());
+            ppns = frameAllocator.allocate(count);
+        }
+        return ppns;
     }
 
     /**
@@ -189,7 +212,7 @@ public class UserKernel extends ThreadedKernel {
      * @author dpf
      */
     public void releaseOnePage(int ppn) {
-        freePages.add(ppn);
+        frameAllocator.free(ppn);
     }
 
 
@@ -198,10 +221,36 @@ public class UserKernel extends ThreadedKernel {
      */
     public static SynchConsole console;
 
+    /**
+     * Globally accessible reference to the physical frame allocator.
+     */
+    public static FrameAllocator frameAllocator;
+
+    /**
+     * Globally accessible reference to the cache of executables' read-only
+     * pages.
+     */
+    public static TextPageCache textPages;
+
+    /**
+     * Globally accessible reference to the cache of executable files.
+     */
+    public static ExecutableCache executables;
+
+    /**
+     * Forget everything cached about a file that has been written, truncated
+     * or removed.
+     *
+     * @param name the name of the file.
+     */
+    public static void fileChanged(String name) {
+        executables.invalidate(name);
+        textPages.invalidate(name);
+    }
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 
-    private static SynchList freePages;
     /**
      * 访问正在执行的用户进程的锁
      * @author dpf
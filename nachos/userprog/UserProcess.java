@@ -4,9 +4,9 @@ import nachos.machine.*;
 import nachos.threads.Condition;
 import nachos.threads.KThread;
 import nachos.threads.Lock;
-import nachos.threads.ThreadedKernel;
 
 import java.io.EOFException;
+import java.util.Arrays;
 import java.util.HashSet;
 
 /**
@@ -41,7 +41,7 @@ public class UserProcess {
 
         this.childProcesses = new HashSet<Integer>();//用于储存该进程下的子进程pid
         this.processExitStatus = NOT_EXIT;//初始化该进程退出状态为未退出状态
-        this.processStatusLock = new Lock();//初始化访问进程状态锁
+        this.processStatusLock = new Lock("UserProcess.processStatusLock");//初始化访问进程状态锁
         this.joinCondition = new Condition(this.processStatusLock);//初始化访问进程状态的条件变量
 
         int numPhysPages = Machine.processor().getNumPhysPages();
@@ -227,8 +227,8 @@ public class UserProcess {
         while (amount != length) {
             //如果此时的vpn已经超过页数,说明length+vaddr的长度超出进程的内存边界,需要立即返回
             if (vpn >= numPages) break;
-            //如果此时的vpn标识为只读,则不应该改写它,需要立即返回
-            if (pageTable[vpn].readOnly) break;
+            //如果此时的vpn标识为只读,则不应该改写它,需要立即返回；写时复制的页先复制出私有的一页再写
+            if (pageTable[vpn].readOnly && !breakCopyOnWrite(vpn)) break;
             //当前页的页内偏移，只有包含起始地址的page的页内偏移不为0
             int pageOffset = 0;
             if (amount == 0) pageOffset = Processor.offsetFromAddress(vaddr);
@@ -262,12 +262,15 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
         Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-        OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+        OpenFile executable = UserKernel.executables.open(name);
         if (executable == null) {
             Lib.debug(dbgProcess, "\topen failed");
             return false;
         }
 
+        executableName = name;
+        executableLength = executable.length();
+
         try {
             coff = new Coff(executable);
         } catch (EOFException e) {
@@ -349,42 +352,57 @@ public class UserProcess {
             Lib.debug(dbgProcess, "\tinsufficient physical memory");
             return false;
         }
-        // 修改
         pageTable = new TranslationEntry[numPages];
-        // 这个index用来指示pageTable从哪开始还是null。因为前面的load()方法已经验证过section,stack,arg所占的pages，所以只需要在每次分配entry后自加即可。
-        int pageIndex = 0;
-        // load sections
+        // 只读段的页从内核的代码页缓存中映射，与运行同一程序的其他进程共享同一物理页
+        int numTextPages = 0;
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
+            if (!section.isReadOnly())
+                continue;
 
             Lib.debug(dbgProcess,
-                    "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
+                    "\tmapping " + section.getName() + " section (" + section.getLength() + " pages)");
 
             for (int i = 0; i < section.getLength(); i++) {
                 int vpn = section.getFirstVPN() + i;
-                // 为上面的vpn分配物理页,若没有空闲的物理页可用则返回异常
-                Integer ppn = ((UserKernel)Kernel.kernel).getOneFreePage(pid, vpn);//实验三dpf修改
-                if (ppn == null) {
+                int ppn = UserKernel.textPages.map(executableName, executableLength, section, s, i);
+                if (ppn == -1) {
+                    Lib.debug(dbgProcess, "\tinsufficient free physical memory");
                     releaseRes();// 释放资源
                     return false;
                 }
-                // 若有空闲的物理页,则进行页表更新
-                pageTable[pageIndex++] = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), false, false);
+                pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true, false, false);
+                numTextPages++;
+            }
+        }
+        // 在载入其余段之前一次性预留进程需要的全部私有物理页，要么全部得到，要么一页也不占
+        int[] ppns = ((UserKernel)Kernel.kernel).getFreePages(pid, numPages - numTextPages);
+        if (ppns == null) {
+            Lib.debug(dbgProcess, "\tinsufficient free physical memory");
+            releaseRes();// 释放资源
+            return false;
+        }
+        int ppnIndex = 0;
+        // load sections
+        for (int s = 0; s < coff.getNumSections(); s++) {
+            CoffSection section = coff.getSection(s);
+            if (section.isReadOnly())
+                continue;
+
+            Lib.debug(dbgProcess,
+                    "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
+
+            for (int i = 0; i < section.getLength(); i++) {
+                int vpn = section.getFirstVPN() + i;
+                int ppn = ppns[ppnIndex++];
+                pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false, false);
                 // for now,virtual addresses!=physical addresses
                 section.loadPage(i, ppn);
             }
         }
-        // 为剩下的stack和参数所占的页数分配内存
-        while (pageIndex < numPages) {
-            // 分配物理页,若没有空闲的物理页可用则返回异常
-            Integer ppn = ((UserKernel)Kernel.kernel).getOneFreePage(pid, pageIndex);
-            if (ppn == null) {
-                releaseRes();// 释放资源
-                return false;
-            }
-            // 若有空闲的物理页,则进行页表更新
-            pageTable[pageIndex] = new TranslationEntry(pageIndex, ppn, true, false, false, false);
-            pageIndex++;
+        // 剩下的stack和参数所占的页，紧接在各段之后
+        for (int vpn = numPages - stackPages - 1; vpn < numPages; vpn++) {
+            pageTable[vpn] = new TranslationEntry(vpn, ppns[ppnIndex++], true, false, false, false);
         }
         return true;
     }
@@ -401,13 +419,21 @@ public class UserProcess {
      * program loaded into this process. Set the PC register to point at the
      * start function, set the stack pointer register to point at the top of
      * the stack, set the A0 and A1 registers to argc and argv, respectively,
-     * and initialize all other registers to 0.
+     * and initialize all other registers to 0. A process created by
+     * <tt>fork()</tt> instead starts with its parent's registers.
      */
     public void initRegisters() {
         Processor processor = Machine.processor();
 
+        if (forkedRegisters != null) {
+            for (int i = 0; i < Processor.numUserRegisters; i++)
+                processor.writeRegister(i, forkedRegisters[i]);
+            forkedRegisters = null;
+            return;
+        }
+
         // by default, everything's 0
-        for (int i = 0; i < processor.numUserRegisters; i++)
+        for (int i = 0; i < Processor.numUserRegisters; i++)
             processor.writeRegister(i, 0);
 
         // initialize PC and SP according
@@ -429,7 +455,8 @@ public class UserProcess {
      */
     protected int pid;
     private static int nextPid = 0;
-    private static Lock staticResourceLock = new Lock();
+    private static Lock staticResourceLock =
+            new Lock("UserProcess.staticResourceLock");
     /**
      * 题目中要求,一个进程最多能打开16个文件,且每个文件都有唯一的标识符
      * 用一个数组存储来存储这最多16个文件，那么它在数组中的位置就可以当做它唯一的标识符
@@ -444,9 +471,10 @@ public class UserProcess {
          * 对于不是root的进程，应当返回
          */
         if (pid != 0) return 0;
-        Machine.halt();
+        //通过内核关机，内核要先打印统计信息、关闭交换区文件等
+        Kernel.kernel.terminate();
 
-        Lib.assertNotReached("Machine.halt() did not halt machine!");
+        Lib.assertNotReached("Kernel.kernel.terminate() did not halt machine!");
         return 0;
     }
 
@@ -487,6 +515,8 @@ public class UserProcess {
              */
             OpenFile file = UserKernel.fileSystem.open(fileName, true);
             if (file == null) return -1;
+            //文件被截断，缓存的旧可执行文件和代码页作废
+            UserKernel.fileChanged(fileName);
             //记录文件
             openFiles[fileDes] = file;
             return fileDes;
@@ -539,29 +569,20 @@ public class UserProcess {
      * @param fd        文件描述符
      * @param bufferPtr 文件内容要存在虚拟内存的首地址
      * @param size      文件内容的大小（字节数组的长度）
-     * @return 正常进行返回0, 异常返回-1
-     * 通过文件系统的read方法，读取文件的内容，将其写入虚拟内存中
+     * @return 成功读取的字节数, 异常返回-1
+     * 通过文件系统的read方法，把文件的内容直接读进用户缓冲区所在的物理页
      */
     private int handleRead(int fd, int bufferPtr, int size) {
         //判断文件描述符的合法性
-        if (fd < 0 || fd >= 16 || openFiles[fd] == null) {
+        if (fd < 0 || fd >= 16 || openFiles[fd] == null || size < 0) {
             return -1;
         }
         //判断地址是否合法，如果非法，应当杀死进程，释放资源
         if (!validAddress(bufferPtr)) {
             return terminate();
         }
-        //创建size大小的byte数组，用来存放从文件呢中读取的内容
-        byte[] buffer = new byte[size];
-        //从文件中读取，内容放到buffer，bytesRead为成功读取的长度
-        int bytesRead = openFiles[fd].read(buffer, 0, size);
-        //bytesRead为-1表示读取失败，返回-1
-        if (bytesRead == -1) return -1;
-        //写入虚拟内存，bytesWritten为成功写入的长度
-        int bytesWritten = writeVirtualMemory(bufferPtr, buffer, 0, bytesRead);
-        //如果写入的长度与读取的长度不一样，这意味着bufferPtr不合法或者，返回-1
-        if (bytesWritten != bytesRead) return -1;
-        return bytesWritten;
+        //逐页从文件中读取，bytesRead为成功读取的长度，-1表示读取失败或bufferPtr之后的缓冲区不可写
+        return transferFile(openFiles[fd], bufferPtr, size, true);
     }
 
     /**
@@ -571,30 +592,113 @@ public class UserProcess {
      * @param bufferPtr 存在虚拟内存中的内容的首地址
      * @param size      内容的大小
      * @return 返回值
-     * 从虚拟内存中取得要写入文件的内容，调用文件系统的方法，写入文件
+     * 调用文件系统的方法，把用户缓冲区所在的物理页中的内容直接写入文件
      */
     private int handleWrite(int fd, int bufferPtr, int size) {
         //判断文件描述符的合法性
-        if (fd < 0 || fd >= 16 || openFiles[fd] == null) {
+        if (fd < 0 || fd >= 16 || openFiles[fd] == null || size < 0) {
             return -1;
         }
         //判断地址是否合法，如果非法，应当杀死进程，释放资源
         if (!validAddress(bufferPtr)) {
             return terminate();
         }
-        //新建长度为size的byte数组，来存储要写入的内容
-        byte[] buffer = new byte[size];
-        //从虚拟内存中读取要写入的内容，bytesRead是成功读取的长度
-        int bytesRead = readVirtualMemory(bufferPtr, buffer);
-        //如果bytesRead为-1说明bufferPtr地址非法，返回-1
-        if (bytesRead == -1) return -1;
-        //调用文件系统的方法，向文件中写入内容，bytesWritten为成功写入的字节数
-        int bytesWritten = openFiles[fd].write(buffer, 0, bytesRead);
+        //逐页向文件中写入内容，bytesWritten为成功写入的字节数，超出进程地址空间的部分不写
+        int bytesWritten = transferFile(openFiles[fd], bufferPtr, size, false);
+        //文件内容已改变，缓存的可执行文件和代码页作废（控制台不属于任何文件系统）
+        if (openFiles[fd].getFileSystem() != null)
+            UserKernel.fileChanged(openFiles[fd].getName());
         //若write()返回-1，说明写入文件失败(可能由于磁盘已满,细节由java的file类处理)
         if (bytesWritten == -1) return -1;
         return bytesWritten;
     }
 
+    /**
+     * 在文件和用户缓冲区所在的物理页之间直接传送数据，不经过中间数组
+     * 逐页翻译虚拟地址，每一页在传送期间由pinPage()固定，传送完再解除；物理上连续的页一次传送，
+     * 但一次最多固定maxPinnedPages页，只有第一页可以等待固定
+     *
+     * @param file    文件
+     * @param vaddr   用户缓冲区的首地址
+     * @param size    要传送的字节数
+     * @param reading 为true时从文件读进内存，否则从内存写入文件
+     * @return 传送的字节数；读取时文件读取失败或缓冲区超出可写的内存则返回-1
+     */
+    private int transferFile(OpenFile file, int vaddr, int size, boolean reading) {
+        byte[] memory = Machine.processor().getMemory();
+
+        int amount = 0;//已经传送的字节数
+        while (amount < size) {
+            int vpn = Processor.pageFromAddress(vaddr + amount);
+            int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+            //本次应传送的字节数
+            int length = Math.min(pageSize - pageOffset, size - amount);
+
+            int ppn = pinPage(vpn, reading, true);
+            if (ppn == -1) {
+                //缓冲区超出了进程的地址空间，或者要读进只读的页
+                return reading ? -1 : amount;
+            }
+            //物理上连续的后续页合并成一次传送，每次文件系统调用都有延迟
+            //已经固定着页的时候不能再等待别的页被解除固定，否则几个传送互相等待会死锁
+            int numPinned = 1;
+            while (amount + length < size && numPinned < maxPinnedPages) {
+                int next = pinPage(vpn + numPinned, reading, false);
+                if (next != ppn + numPinned) {
+                    if (next != -1) unpinPage(next);
+                    break;
+                }
+                length += Math.min(pageSize, size - amount - length);
+                numPinned++;
+            }
+
+            int paddr = Processor.makeAddress(ppn, pageOffset);
+            int transferred = reading ? file.read(memory, paddr, length)
+                    : file.write(memory, paddr, length);
+            for (int i = 0; i < numPinned; i++)
+                unpinPage(ppn + i);
+
+            if (transferred == -1)
+                return (amount == 0) ? -1 : amount;
+            amount += transferred;
+            //文件读到了末尾，或者控制台暂时没有更多输入
+            if (transferred < length)
+                break;
+        }
+
+        return amount;
+    }
+
+    /**
+     * Find the frame holding a virtual page, so that a system call can
+     * transfer data directly between a file and that frame, and keep the page
+     * in that frame until <tt>unpinPage()</tt> is called.
+     *
+     * @param vpn     the virtual page.
+     * @param writing <tt>true</tt> if the page is about to be written.
+     * @param mayWait <tt>false</tt> if the caller already holds pinned
+     *                frames, and so must not block waiting for another frame.
+     * @return the frame, or -1 if the page is outside this process's address
+     * space, is read-only and <i>writing</i> is <tt>true</tt>, or cannot be
+     * pinned without waiting and <i>mayWait</i> is <tt>false</tt>.
+     */
+    protected int pinPage(int vpn, boolean writing, boolean mayWait) {
+        if (vpn < 0 || vpn >= numPages)
+            return -1;
+        if (writing && pageTable[vpn].readOnly && !breakCopyOnWrite(vpn))
+            return -1;
+
+        return pageTable[vpn].ppn;
+    }
+
+    /**
+     * Release a frame returned by <tt>pinPage()</tt>.
+     *
+     * @param ppn the frame.
+     */
+    protected void unpinPage(int ppn) {
+    }
+
     /**
      * 功能：关闭文件
      *
@@ -628,6 +732,7 @@ public class UserProcess {
             return -1;
         } else {
             //调用文件系统的remove方法，删除文件
+            UserKernel.fileChanged(fileName);
             return UserKernel.fileSystem.remove(fileName) ? 0 : -1;
         }
     }
@@ -693,11 +798,12 @@ public class UserProcess {
 
     // 释放文件和内存等资源
     protected void releaseRes() {
-        // 释放内存资源
-        for (int i = 0; i < numPages; i++) {
+        // 释放内存资源；载入失败时页表可能还没有分配
+        for (int i = 0; pageTable != null && i < numPages; i++) {
             if (pageTable[i] != null && pageTable[i].valid == true) {
-                // 如果该页表存在,并且实际分配了物理页,那么就将其释放
-                ((UserKernel)Kernel.kernel).releaseOnePage(pageTable[i].ppn);// 将该页表项对应的物理页号释放到空闲页表列表中
+                // 如果该页表存在,并且实际分配了物理页,那么就将其释放；共享的代码页只减少其引用计数
+                if (!UserKernel.textPages.unmap(pageTable[i].ppn))
+                    ((UserKernel)Kernel.kernel).releaseOnePage(pageTable[i].ppn);// 将该页表项对应的物理页号释放到空闲页表列表中
             }
         }
         // 释放文件资源
@@ -766,6 +872,144 @@ public class UserProcess {
         }
     }
 
+    /**
+     * 系统调用fork()：创建一个与当前进程几乎完全相同的子进程
+     * 子进程与父进程共享全部物理页，可写的页在两个进程中都标记为只读（写时复制），
+     * 哪个进程先写某一页，就在那时为它复制出私有的一页，所以fork的代价只与之后实际写到的页数有关
+     * 文件表中的文件在子进程中重新打开，读写位置与父进程相同，但之后各自独立
+     *
+     * @return 父进程中返回子进程的进程号，子进程中返回0，失败返回-1
+     */
+    private int handleFork() {
+        Lib.assertTrue(this == UserKernel.currentProcess());//确保该进程是当前进程
+
+        UserProcess child = UserProcess.newUserProcess();
+        if (!copyAddressSpace(child)) {
+            //不能共享地址空间，关闭子进程构造时打开的控制台
+            for (OpenFile file : child.openFiles) {
+                if (file != null) file.close();
+            }
+            return -1;
+        }
+        if (!copyFiles(child)) {
+            child.releaseRes();//释放已经共享的物理页和已经打开的文件
+            return -1;
+        }
+        child.executableName = executableName;
+        child.executableLength = executableLength;
+
+        //子进程从fork()返回处开始执行，返回值为0
+        Processor processor = Machine.processor();
+        child.forkedRegisters = new int[Processor.numUserRegisters];
+        for (int i = 0; i < Processor.numUserRegisters; i++)
+            child.forkedRegisters[i] = processor.readRegister(i);
+        child.forkedRegisters[Processor.regV0] = 0;
+        child.forkedRegisters[Processor.regPC] = child.forkedRegisters[Processor.regNextPC];
+        child.forkedRegisters[Processor.regNextPC] += 4;
+
+        UserKernel.addOneProcess(child.pid, child);//向UserKernel报告新加了一个用户进程
+        this.childProcesses.add(child.pid);//将该新的子进程加入到父进程的子进程列表中去
+        new UThread(child).setName(executableName).fork();
+
+        return child.pid;
+    }
+
+    /**
+     * Give a child being forked the same address space as this process.
+     * Read-only text pages are mapped once more from the text page cache;
+     * every other page is shared copy-on-write, read-only in both processes
+     * until one of them writes it.
+     *
+     * @param child the child process.
+     * @return <tt>true</tt> if the address space was copied.
+     */
+    protected boolean copyAddressSpace(UserProcess child) {
+        if (copyOnWrite == null)
+            copyOnWrite = new boolean[numPages];
+
+        child.numPages = numPages;
+        child.pageTable = new TranslationEntry[numPages];
+        child.copyOnWrite = new boolean[numPages];
+
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            TranslationEntry entry = pageTable[vpn];
+            if (entry.readOnly && !copyOnWrite[vpn]) {
+                // 只读段的代码页本来就在代码页缓存中共享
+                UserKernel.textPages.share(entry.ppn);
+            } else {
+                UserKernel.frameAllocator.share(entry.ppn);
+                entry.readOnly = true;
+                copyOnWrite[vpn] = true;
+                child.copyOnWrite[vpn] = true;
+            }
+            child.pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, true, true, false, false);
+        }
+
+        return true;
+    }
+
+    /**
+     * 为正在fork的子进程重新打开父进程打开的每个文件，并移到相同的读写位置
+     * 控制台不属于任何文件系统，子进程构造时已经打开了自己的0和1
+     *
+     * @param child 子进程
+     * @return 全部打开成功返回true
+     */
+    private boolean copyFiles(UserProcess child) {
+        for (int fd = 0; fd < openFiles.length; fd++) {
+            OpenFile file = openFiles[fd];
+            if (file == null) {
+                //父进程已经关闭了这个文件描述符，子进程也不应该有
+                if (child.openFiles[fd] != null) {
+                    child.openFiles[fd].close();
+                    child.openFiles[fd] = null;
+                }
+                continue;
+            }
+            if (file.getFileSystem() == null) continue;
+
+            OpenFile copy = file.getFileSystem().open(file.getName(), false);
+            if (copy == null) return false;
+            copy.seek(file.tell());
+            //父进程可能把0或1换成了普通文件，先关闭子进程构造时打开的控制台
+            if (child.openFiles[fd] != null)
+                child.openFiles[fd].close();
+            child.openFiles[fd] = copy;
+        }
+
+        return true;
+    }
+
+    /**
+     * Give this process its own copy of a copy-on-write page, so that it can
+     * be written. If no other process shares the page any more, it is simply
+     * made writable.
+     *
+     * @param vpn the virtual page.
+     * @return <tt>true</tt> if the page is now writable, or <tt>false</tt> if
+     * it is not a copy-on-write page or there is no free frame to copy it to.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+        if (copyOnWrite == null || !copyOnWrite[vpn])
+            return false;
+
+        TranslationEntry entry = pageTable[vpn];
+        if (UserKernel.frameAllocator.isShared(entry.ppn)) {
+            Integer ppn = ((UserKernel) Kernel.kernel).getOneFreePage(pid, vpn);
+            if (ppn == null)
+                return false;
+
+            byte[] memory = Machine.processor().getMemory();
+            System.arraycopy(memory, entry.ppn * pageSize, memory, ppn * pageSize, pageSize);
+            ((UserKernel) Kernel.kernel).releaseOnePage(entry.ppn);// 只减少原物理页的共享计数
+            entry.ppn = ppn;
+        }
+        entry.readOnly = false;
+        copyOnWrite[vpn] = false;
+
+        return true;
+    }
+
     /**
      * 系统调用join()
      *
@@ -821,7 +1065,8 @@ public class UserProcess {
             syscallRead = 6,
             syscallWrite = 7,
             syscallClose = 8,
-            syscallUnlink = 9;
+            syscallUnlink = 9,
+            syscallFork = 13;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -842,6 +1087,7 @@ public class UserProcess {
      * 								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
      * </table>
      *
      * @param syscall the syscall number.
@@ -873,6 +1119,8 @@ public class UserProcess {
                 return handleExec(a0, a1, a2);
             case syscallJoin:
                 return handleJoin(a0, a1);
+            case syscallFork:
+                return handleFork();
             default:
                 Lib.debug(dbgProcess, "Unknown syscall " + syscall);
                 Lib.assertNotReached("Unknown system call!");
@@ -902,17 +1150,95 @@ public class UserProcess {
                 processor.writeRegister(Processor.regV0, result);
                 processor.advancePC();
                 break;
+            case Processor.exceptionReadOnly:
+                int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+                if (copyOnWrite != null && copyOnWrite[vpn]) {
+                    // 写时复制的页：复制出本进程私有的一页后重新执行这条指令，没有空闲物理页则结束进程
+                    if (!breakCopyOnWrite(vpn))
+                        terminate();
+                    break;
+                }
+                // 真正只读的页，按意外异常处理
+                handleUnexpectedException(cause);
+                break;
             default:
-                Lib.debug(dbgProcess, "Unexpected exception: " +
-                        Processor.exceptionNames[cause]);
-                Lib.assertNotReached("Unexpected exception");
+                handleUnexpectedException(cause);
         }
     }
 
+    private void handleUnexpectedException(int cause) {
+        Lib.debug(dbgProcess, "Unexpected exception: " +
+                Processor.exceptionNames[cause]);
+        Lib.assertNotReached("Unexpected exception");
+    }
+
+    /**
+     * Test the parts of fork() that do not need a running program: a parent
+     * with two pages and standard input redirected to a file gives a child
+     * its address space and files, then each writes its pages. Only the
+     * pages written are copied, writes stay private to the process making
+     * them, and the child gets its own copy of the file in place of its
+     * console. The test is skipped unless the kernel is a
+     * <tt>UserKernel</tt>, since other kernels manage frames themselves.
+     */
+    public static void selfTest() {
+        if (Kernel.kernel.getClass() != UserKernel.class)
+            return;
+
+        FrameAllocator frames = UserKernel.frameAllocator;
+        int numFree = frames.getNumFree();
+        byte[] before = {1, 2, 3, 4}, after = {5, 6, 7, 8};
+        byte[] data = new byte[before.length];
+
+        UserProcess parent = new UserProcess();
+        int[] ppns = ((UserKernel) Kernel.kernel).getFreePages(parent.pid, 2);
+        parent.numPages = 2;
+        parent.pageTable = new TranslationEntry[2];
+        for (int vpn = 0; vpn < 2; vpn++) {
+            parent.pageTable[vpn] = new TranslationEntry(vpn, ppns[vpn], true, false, false, false);
+            parent.writeVirtualMemory(vpn * pageSize, before);
+        }
+        parent.openFiles[0].close();
+        parent.openFiles[0] = UserKernel.fileSystem.open("fork.tmp", true);
+
+        UserProcess child = new UserProcess();
+        Lib.assertTrue(parent.copyAddressSpace(child) && parent.copyFiles(child));
+        Lib.assertTrue(frames.getNumFree() == numFree - 2);
+        Lib.assertTrue(child.openFiles[0].getFileSystem() != null);
+
+        // 子进程写第0页时得到私有的一页，第1页仍然共享
+        Lib.assertTrue(child.writeVirtualMemory(0, after) == after.length);
+        Lib.assertTrue(frames.getNumFree() == numFree - 3);
+        parent.readVirtualMemory(0, data);
+        Lib.assertTrue(Arrays.equals(data, before));
+        child.readVirtualMemory(pageSize, data);
+        Lib.assertTrue(Arrays.equals(data, before));
+
+        // 父进程写第1页时复制一页；第0页已不再共享，直接变为可写
+        Lib.assertTrue(parent.writeVirtualMemory(pageSize, after) == after.length);
+        Lib.assertTrue(parent.writeVirtualMemory(0, after) == after.length);
+        Lib.assertTrue(frames.getNumFree() == numFree - 4);
+        child.readVirtualMemory(pageSize, data);
+        Lib.assertTrue(Arrays.equals(data, before));
+        child.readVirtualMemory(0, data);
+        Lib.assertTrue(Arrays.equals(data, after));
+
+        parent.releaseRes();
+        child.releaseRes();
+        UserKernel.fileSystem.remove("fork.tmp");
+        Lib.assertTrue(frames.getNumFree() == numFree);
+    }
+
     /**
      * The program being run by this process.
      */
     protected Coff coff;
+    /**
+     * The name and length of the executable file, which identify it in the
+     * text page cache.
+     */
+    protected String executableName;
+    protected int executableLength;
 
     /**
      * This process's page table.
@@ -922,6 +1248,11 @@ public class UserProcess {
      * The number of contiguous pages occupied by the program.
      */
     protected int numPages;
+    /**
+     * Which pages are shared copy-on-write with a parent or child, or
+     * <tt>null</tt> if this process has never forked or been forked.
+     */
+    protected boolean[] copyOnWrite;
 
     /**
      * The number of pages in the program's stack.
@@ -930,6 +1261,8 @@ public class UserProcess {
 
     private int initialPC, initialSP;
     private int argc, argv;
+    /** The registers a forked process starts with, until it has started. */
+    private int[] forkedRegisters;
 
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
@@ -940,6 +1273,7 @@ public class UserProcess {
     private Lock processStatusLock;//用于访问进程状态的锁
     private Condition joinCondition;//用于访问进程状态的条件变量
     private static final int maxArgStrLen = 256;//系统调用传递参数最大字符串的长度
+    private static final int maxPinnedPages = 4;//一次文件传送最多同时固定的页数
 
     private static final int NOT_EXIT = -1;//进程未退出状态
     private static final int NORMAL_EXIT = 1;//进程正常退出状态
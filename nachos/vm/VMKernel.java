@@ -1,10 +1,12 @@
 package nachos.vm;
 
+import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.OpenFile;
 import nachos.machine.Processor;
+import nachos.threads.Condition;
 import nachos.threads.Lock;
-import nachos.threads.SynchList;
+import nachos.threads.SynchIntList;
 import nachos.userprog.UserKernel;
 
 import java.util.HashMap;
@@ -28,13 +30,16 @@ public class VMKernel extends UserKernel {
     public void initialize(String[] args) {
         super.initialize(args);
         invertedPageTable = new InvertedTranslationEntry[Machine.processor().getNumPhysPages()];
-        invertedPageTableLock = new Lock();
+        invertedPageTableLock = new Lock("VMKernel.invertedPageTableLock");
+        pinCounts = new int[Machine.processor().getNumPhysPages()];
+        maxPinnedFrames = Math.max(1, Machine.processor().getNumPhysPages() / 2);
+        frameAvailable = new Condition(invertedPageTableLock);
 
         /* 实验三问题二 */
         swapSpaceFile = openSwapFile();//初始化的时候，新开一个交换区文件
-        freeSwapSpacePage = new SynchList();//刚开始可以不往里面写空闲页，有需要的时候直接往后造一个空闲页并给出即可，反正文件向后是无穷大的
+        freeSwapSpacePage = new SynchIntList();//刚开始可以不往里面写空闲页，有需要的时候直接往后造一个空闲页并给出即可，反正文件向后是无穷大的
         swapSpacePageTableHashMap = new HashMap<>();//初始化交换区页表
-        swapSpaceLock = new Lock();//初始化交换区访问锁
+        swapSpaceLock = new Lock("VMKernel.swapSpaceLock");//初始化交换区访问锁
     }
 
     protected OpenFile openSwapFile() {
@@ -83,12 +88,28 @@ private static int test = 0;
          */
         Integer freePageNum = super.getOneFreePage(pid, vPageNum);//申请一页空闲页
 
-        if (freePageNum == null) {
+        while (freePageNum == null) {
             invertedPageTableLock.acquire();
             //判断没有空闲页了，选择一个牺牲者
             test++;
-            freePageNum = chooseByClock();
-//            freePageNum = chooseByRandom();
+            int victim = chooseByClock();
+//            int victim = chooseByRandom();
+            if (victim == -1) {
+                //在内存中的页全都被固定了，等到有页解除固定、被释放或者换入完成再重新找
+                //找牺牲页之前可能刚好有页被释放，所以先记下事件数，再试一次空闲页
+                int events = frameEvents;
+                invertedPageTableLock.release();
+                freePageNum = super.getOneFreePage(pid, vPageNum);
+                if (freePageNum != null)
+                    break;
+                invertedPageTableLock.acquire();
+                while (frameEvents == events)
+                    frameAvailable.sleep();
+                invertedPageTableLock.release();
+                continue;
+            }
+            freePageNum = victim;
+            //清空反向页表项就是标记这一页正在被换出，pinPage()在同一把锁下看到它为空就不会再固定它
             InvertedTranslationEntry invertedTranslationEntry = invertedPageTable[freePageNum];
             invertedPageTable[freePageNum] = null;
             invertedPageTableLock.release();
@@ -112,27 +133,42 @@ private static int test = 0;
     }
 
 
+    /**
+     * 时钟算法选择牺牲页。第一圈清掉的使用位在第二圈就能选中，所以转两圈还没有找到，
+     * 说明在内存中的页全都被固定了
+     *
+     * @return 牺牲页的物理页号，找不到返回-1
+     */
     private int chooseByClock() {
-        int freePageNum = nextInvertedToCheck;
-        boolean find = false;
-        while (!find) {
-            if (invertedPageTable[nextInvertedToCheck] != null) {
-                InvertedTranslationEntry translationEntry = invertedPageTable[nextInvertedToCheck];
+        int numPhysPages = Machine.processor().getNumPhysPages();
+        for (int i = 0; i < 2 * numPhysPages; i++) {
+            int ppn = nextInvertedToCheck;
+            nextInvertedToCheck = (nextInvertedToCheck + 1) % numPhysPages;
+            if (invertedPageTable[ppn] != null && pinCounts[ppn] == 0) {
+                InvertedTranslationEntry translationEntry = invertedPageTable[ppn];
                 boolean used = ((VMProcess) getUserProcess(translationEntry.pid)).checkUsed(translationEntry.vpn);
-                if (!used) {
-                    freePageNum = nextInvertedToCheck;
-                    find = true;
-                }
+                if (!used)
+                    return ppn;
             }
-            nextInvertedToCheck = (nextInvertedToCheck + 1) % Machine.processor().getNumPhysPages();
         }
-        return freePageNum;
+        return -1;
     }
 
+    /**
+     * @return 随机选出的牺牲页的物理页号，在内存中的页全都被固定了返回-1
+     */
     private int chooseByRandom() {
+        int candidates = 0;
+        for (int i = 0; i < invertedPageTable.length; i++) {
+            if (invertedPageTable[i] != null && pinCounts[i] == 0)
+                candidates++;
+        }
+        if (candidates == 0)
+            return -1;
+
         Random random = new Random();
         int num = random.nextInt(invertedPageTable.length);
-        while (invertedPageTable[num] == null) {
+        while (invertedPageTable[num] == null || pinCounts[num] > 0) {
             num = random.nextInt(invertedPageTable.length);
         }
         return num;
@@ -148,6 +184,12 @@ private static int test = 0;
         invertedPageTableLock.release();
 
         super.releaseOnePage(ppn);//将该页物理页作为空闲页添加到空闲物理页表中
+
+        //唤醒等待牺牲页的线程
+        invertedPageTableLock.acquire();
+        frameEvents++;
+        frameAvailable.wakeAll();
+        invertedPageTableLock.release();
     }
 
     /**
@@ -160,6 +202,60 @@ private static int test = 0;
     public void recordOneInvertedPageUsage(int invertedPageNum, int pid, int vPageNum) {
         invertedPageTableLock.acquire();
         invertedPageTable[invertedPageNum] = new InvertedTranslationEntry(pid, vPageNum);//将物理页使用情况记录下来
+        //唤醒等待牺牲页的线程，以及等待这一页换出的pinPage()
+        frameEvents++;
+        frameAvailable.wakeAll();
+        invertedPageTableLock.release();
+    }
+
+    /**
+     * 固定一页物理页，在unpinPage()之前时钟算法不会选它换出
+     * 系统调用直接在文件和物理页之间传送数据时，传送中可能阻塞，需要先固定该页
+     * 同时被固定的物理页最多maxPinnedFrames页，留下的页保证缺页总能换出牺牲页
+     * 和chooseByClock()在同一把锁下检查，反向页表项不是(pid, vpn)的页不会被固定：
+     * 反向页表项为空说明这一页正在被换出（或者还没换入完），要等；属于别的页说明已经换出了
+     *
+     * @param ppn  物理页号
+     * @param pid  进程号
+     * @param vpn  进程认为在这一物理页中的虚拟页号
+     * @param wait 到了上限或者这一页正在被换出时是否等待；已经固定着页的调用者不能等待
+     * @return 是否固定成功；为false时如果这一页已经被换出，要重新换入再固定
+     */
+    public boolean pinPage(int ppn, int pid, int vpn, boolean wait) {
+        invertedPageTableLock.acquire();
+        while (true) {
+            InvertedTranslationEntry entry = invertedPageTable[ppn];
+            if (entry != null && (entry.pid != pid || entry.vpn != vpn)) {
+                invertedPageTableLock.release();
+                return false;
+            }
+            if (entry != null && (pinCounts[ppn] > 0 || numPinnedFrames < maxPinnedFrames))
+                break;
+            if (!wait) {
+                invertedPageTableLock.release();
+                return false;
+            }
+            frameAvailable.sleep();
+        }
+        if (pinCounts[ppn]++ == 0)
+            numPinnedFrames++;
+        invertedPageTableLock.release();
+        return true;
+    }
+
+    /**
+     * 解除pinPage()对一页物理页的固定
+     *
+     * @param ppn 物理页号
+     */
+    public void unpinPage(int ppn) {
+        invertedPageTableLock.acquire();
+        Lib.assertTrue(pinCounts[ppn] > 0);
+        if (--pinCounts[ppn] == 0) {
+            numPinnedFrames--;
+            frameEvents++;
+            frameAvailable.wakeAll();
+        }
         invertedPageTableLock.release();
     }
 
@@ -199,8 +295,8 @@ private static int test = 0;
      */
     public static Integer getOneFreeSwapPage(int pid, int vpn) {
         swapSpaceLock.acquire();
-        Integer swapPpn = (Integer) freeSwapSpacePage.pop();
-        if (swapPpn == null) {//先查看是否有空闲的交换区页
+        int swapPpn = freeSwapSpacePage.pop(-1);
+        if (swapPpn == -1) {//先查看是否有空闲的交换区页
             swapPpn = swapSpacePageNum++;//如果没有则新增一页返回
         }
         swapSpacePageTableHashMap.put(pid + ":" + vpn, swapPpn);
@@ -241,8 +337,22 @@ private static int test = 0;
     //维护一个环形队列，用于时钟算法。直接利用反向页表，只要记下一个索引就好了
     private static int nextInvertedToCheck = 0;
 
+    //同时保护反向页表和下面固定页的计数，选牺牲页和固定页因此不会交错
     private static Lock invertedPageTableLock;
 
+    //每页物理页被固定的次数，被固定的页不会被换出
+    private static int[] pinCounts;
+
+    //被固定的物理页数及其上限
+    private static int numPinnedFrames = 0;
+    private static int maxPinnedFrames;
+
+    //等待牺牲页或者等待固定的线程在frameAvailable上等待
+    private static Condition frameAvailable;
+
+    //物理页被解除固定、被释放或者换入完成的次数，用来判断等待期间有没有新的牺牲页出现
+    private static int frameEvents = 0;
+
     /**
      * 交换空间文件，用于存储修改过但是要从物理内存换出的页面,所有进程都可以访问，因此是静态变量
      */
@@ -250,7 +360,7 @@ private static int test = 0;
     /**
      * 用于保存交换空间中的空闲页
      */
-    private static SynchList freeSwapSpacePage;
+    private static SynchIntList freeSwapSpacePage;
     /**
      * 保存交换空间大小
      */
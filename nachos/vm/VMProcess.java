@@ -178,10 +178,61 @@ public class VMProcess extends UserProcess {
         VMKernel.getSwapSpaceFile().write(spaddr, buffer, 0, pageSize);
     }
 
+    /**
+     * 先把不在内存中的页换进来，再固定它所在的物理页，防止在系统调用读写文件阻塞的期间被换出
+     * 不允许等待时，不在内存中的页不换入（换入可能要等空闲页），固定的页数到了上限也直接返回-1
+     */
+    protected int pinPage(int vpn, boolean writing, boolean mayWait) {
+        if (vpn < 0 || vpn >= numPages)
+            return -1;
+
+        TranslationEntry page;
+        while (true) {
+            if (!pageTable[vpn].valid && (!mayWait || !loadOnePage(pid, vpn)))
+                return -1;
+            page = pageTable[vpn];
+            if (writing && page.readOnly)
+                return -1;
+            if (((VMKernel) Kernel.kernel).pinPage(page.ppn, pid, vpn, mayWait))
+                break;
+            //这一页已经被换出，物理页给了别的页，要重新换入
+            if (!mayWait)
+                return -1;
+        }
+
+        page.used = true;
+        if (writing)
+            page.dirty = true;
+        //同时更新TLB中的副本，否则TLB写回的时候会覆盖页表中的used和dirty
+        Processor processor = Machine.processor();
+        for (int i = 0; i < processor.getTLBSize(); i++) {
+            TranslationEntry tEntry = processor.readTLBEntry(i);
+            if (tEntry.valid && tEntry.vpn == vpn) {
+                tEntry.used = true;
+                tEntry.dirty |= writing;
+                processor.writeTLBEntry(i, tEntry);
+            }
+        }
+        return page.ppn;
+    }
+
+    protected void unpinPage(int ppn) {
+        ((VMKernel) Kernel.kernel).unpinPage(ppn);
+    }
+
+    /**
+     * 虚拟内存的页可能在swap中，而swap页以进程号和虚拟页号为键，不能直接与子进程共享，所以不支持fork()
+     */
+    protected boolean copyAddressSpace(UserProcess child) {
+        return false;
+    }
+
     protected void releaseRes() {
         //释放swap表
-        for (TranslationEntry page : pageTable) {
-            VMKernel.releaseOneSwapPage(pid, page.vpn);
+        if (pageTable != null) {
+            for (TranslationEntry page : pageTable) {
+                VMKernel.releaseOneSwapPage(pid, page.vpn);
+            }
         }
         super.releaseRes();
     }